@@ -0,0 +1,306 @@
+/*
+ * CBOR (RFC 7049) encoding of the status payload: a map with the same keys as
+ * the JSON payload, but with ts and lc as integers, booleans as CBOR booleans,
+ * and floats in single precision where that is lossless.
+ *
+ * Set payloads may be a single CBOR item or a map with a "val" entry. Only
+ * definite length items are supported.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.math.*;
+import java.nio.charset.*;
+import java.util.*;
+
+final class CBORStatusCodec implements StatusCodec
+{
+	private static final int MAJOR_UINT=0;
+	private static final int MAJOR_NEGINT=1;
+	private static final int MAJOR_BYTES=2;
+	private static final int MAJOR_TEXT=3;
+	private static final int MAJOR_MAP=5;
+	private static final int MAJOR_SIMPLE=7;
+
+	private static final class Writer
+	{
+		byte buf[]=new byte[128];
+		int len;
+
+		void put(int b)
+		{
+			if(len==buf.length)
+				buf=Arrays.copyOf(buf,buf.length*2);
+			buf[len++]=(byte)b;
+		}
+
+		void header(int major,long v)
+		{
+			if(v>=0 && v<24)
+				put(major<<5|(int)v);
+			else if(v>=0 && v<=0xff)
+			{
+				put(major<<5|24);
+				put((int)v);
+			}
+			else if(v>=0 && v<=0xffff)
+			{
+				put(major<<5|25);
+				bigEndian(v,2);
+			}
+			else if(v>=0 && v<=0xffffffffL)
+			{
+				put(major<<5|26);
+				bigEndian(v,4);
+			}
+			else
+			{
+				put(major<<5|27);
+				bigEndian(v,8);
+			}
+		}
+
+		void bigEndian(long v,int bytes)
+		{
+			for(int shift=(bytes-1)*8;shift>=0;shift-=8)
+				put((int)(v>>>shift));
+		}
+
+		void integer(long v)
+		{
+			if(v>=0)
+				header(MAJOR_UINT,v);
+			else
+				header(MAJOR_NEGINT,-1-v);
+		}
+
+		void text(String s)
+		{
+			if(s==null)
+			{
+				put(MAJOR_SIMPLE<<5|22);
+				return;
+			}
+			byte b[]=s.getBytes(StandardCharsets.UTF_8);
+			header(MAJOR_TEXT,b.length);
+			for(byte c:b)
+				put(c);
+		}
+
+		void floating(double d)
+		{
+			float f=(float)d;
+			if(f==d || Double.isNaN(d))
+			{
+				put(MAJOR_SIMPLE<<5|26);
+				bigEndian(Float.floatToIntBits(f)&0xffffffffL,4);
+			}
+			else
+			{
+				put(MAJOR_SIMPLE<<5|27);
+				bigEndian(Double.doubleToLongBits(d),8);
+			}
+		}
+
+		void value(Object val)
+		{
+			if(val instanceof BigDecimal)
+				floating(((BigDecimal)val).doubleValue());
+			else if(val instanceof Integer)
+				integer(((Integer)val).intValue());
+			else if(val instanceof Boolean)
+				put(MAJOR_SIMPLE<<5|(((Boolean)val).booleanValue()?21:20));
+			else
+				text(val.toString());
+		}
+	}
+
+	private static final ThreadLocal<Writer> writers=new ThreadLocal<Writer>(){
+		@Override
+		protected Writer initialValue()
+		{
+			return new Writer();
+		}
+	};
+
+	@Override
+	public byte[] encode(Object val, long ts, long lc, String address, String getID, String unit, String enumValue)
+	{
+		boolean hasUnit=unit!=null && unit.length()!=0;
+		Writer w=writers.get();
+		w.len=0;
+		w.header(MAJOR_MAP,3+(address!=null?1:0)+(getID!=null?1:0)+(hasUnit?1:0)+(enumValue!=null?1:0));
+		w.text("val");
+		w.value(val);
+		w.text("ts");
+		w.integer(ts);
+		w.text("lc");
+		w.integer(lc);
+		if(address!=null)
+		{
+			w.text("hm_addr");
+			w.text(address);
+		}
+		if(getID!=null)
+		{
+			w.text("hm_getid");
+			w.text(getID);
+		}
+		if(hasUnit)
+		{
+			w.text("hm_unit");
+			w.text(unit);
+		}
+		if(enumValue!=null)
+		{
+			w.text("hm_enum");
+			w.text(enumValue);
+		}
+		return Arrays.copyOf(w.buf,w.len);
+	}
+
+	@Override
+	public String decodeSet(byte payload[])
+	{
+		Reader r=new Reader(payload);
+		Object val=r.item();
+		if(val instanceof Map)
+		{
+			if(!((Map<?,?>)val).containsKey("val"))
+				throw new IllegalArgumentException("CBOR map without \"val\"");
+			val=((Map<?,?>)val).get("val");
+		}
+		if(val==null)
+			throw new IllegalArgumentException("CBOR value is null");
+		if(val instanceof Double)
+		{
+			double d=((Double)val).doubleValue();
+			if(d==Math.rint(d) && Math.abs(d)<1e15)
+				return Long.toString((long)d);
+		}
+		return val.toString();
+	}
+
+	private static final class Reader
+	{
+		private final byte b[];
+		private int pos;
+
+		Reader(byte b[])
+		{
+			this.b=b;
+		}
+
+		private int next()
+		{
+			if(pos>=b.length)
+				throw new IllegalArgumentException("Truncated CBOR item");
+			return b[pos++]&0xff;
+		}
+
+		private long bigEndian(int bytes)
+		{
+			long v=0;
+			for(int ix=0;ix<bytes;ix++)
+				v=(v<<8)|next();
+			return v;
+		}
+
+		private long argument(int ai)
+		{
+			if(ai<24)
+				return ai;
+			switch(ai)
+			{
+				case 24:
+					return next();
+				case 25:
+					return bigEndian(2);
+				case 26:
+					return bigEndian(4);
+				case 27:
+					return bigEndian(8);
+				default:
+					throw new IllegalArgumentException("Unsupported CBOR additional info "+ai);
+			}
+		}
+
+		private int length(int ai)
+		{
+			long l=argument(ai);
+			if(l<0 || l>b.length-pos)
+				throw new IllegalArgumentException("Truncated CBOR item");
+			return (int)l;
+		}
+
+		Object item()
+		{
+			int ib=next();
+			int major=ib>>5;
+			int ai=ib&0x1f;
+			switch(major)
+			{
+				case MAJOR_UINT:
+				{
+					long v=argument(ai);
+					return v>=0?(Object)Long.valueOf(v):Long.toUnsignedString(v);
+				}
+				case MAJOR_NEGINT:
+				{
+					long v=argument(ai);
+					return v>=0?(Object)Long.valueOf(-1-v):new BigInteger(Long.toUnsignedString(v)).add(BigInteger.ONE).negate().toString();
+				}
+				case MAJOR_BYTES:
+				case MAJOR_TEXT:
+				{
+					int l=length(ai);
+					String s=new String(b,pos,l,StandardCharsets.UTF_8);
+					pos+=l;
+					return s;
+				}
+				case MAJOR_MAP:
+				{
+					int n=length(ai);
+					Map<Object,Object> m=new HashMap<>();
+					for(int ix=0;ix<n;ix++)
+						m.put(item(),item());
+					return m;
+				}
+				case MAJOR_SIMPLE:
+					switch(ai)
+					{
+						case 20:
+							return Boolean.FALSE;
+						case 21:
+							return Boolean.TRUE;
+						case 22:
+							return null;
+						case 25:
+							return Double.valueOf(halfToDouble((int)bigEndian(2)));
+						case 26:
+							return Double.valueOf(Float.intBitsToFloat((int)bigEndian(4)));
+						case 27:
+							return Double.valueOf(Double.longBitsToDouble(bigEndian(8)));
+						default:
+							throw new IllegalArgumentException("Unsupported CBOR simple value "+ai);
+					}
+				default:
+					throw new IllegalArgumentException("Unsupported CBOR major type "+major);
+			}
+		}
+
+		private static double halfToDouble(int h)
+		{
+			int exp=(h>>10)&0x1f;
+			int mant=h&0x3ff;
+			double v;
+			if(exp==0)
+				v=Math.scalb((double)mant,-24);
+			else if(exp!=31)
+				v=Math.scalb((double)(mant+1024),exp-25);
+			else
+				v=mant==0?Double.POSITIVE_INFINITY:Double.NaN;
+			return (h&0x8000)!=0?-v:v;
+		}
+	}
+}
@@ -1,9 +1,9 @@
 package com.tellerulam.hm2mqtt;
 
+import com.tellerulam.hm2mqtt.binary.HMXRDictionary;
+
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
 import java.util.Map;
 
 public class DatapointInfo implements Serializable {
@@ -14,11 +14,8 @@ public class DatapointInfo implements Serializable {
     public final String unit;
     public final String enumValues[];
 
-    public transient Object lastValue;
-    public transient long lastValueTime;
-
     private DatapointInfo(String name, HMValueTypes type, String unit, String[] enumValues) {
-        this.name = name;
+        this.name = HMXRDictionary.intern(name);
         this.type = type;
         this.unit = unit;
         this.enumValues = enumValues;
@@ -36,6 +33,11 @@ public class DatapointInfo implements Serializable {
         );
     }
 
+    // Share the datapoint name with the binary decoder's dictionary
+    private Object readResolve() {
+        return new DatapointInfo(name, type, unit, enumValues);
+    }
+
     public boolean isAction() {
         return type == HMValueTypes.ACTION;
     }
@@ -45,33 +47,80 @@ public class DatapointInfo implements Serializable {
         return "{" + name + "}";
     }
 
-    public void publish(String topic, Object val, String address, String getID) {
+    /*
+     * Instances are shared by all channels of the same type, so the last value
+     * is tracked per device. Results of get requests and ACTIONs are always
+     * published, everything else according to the topic's PublishPolicy.
+     */
+    public void publish(DeviceInfo di, String topic, Object val, String getID) {
         boolean retain = !isAction();
         long ts = System.currentTimeMillis();
-        List<String> moreFields = new ArrayList<>();
-        if (!val.equals(lastValue)) {
-            lastValue = val;
-            lastValueTime = ts;
-        }
-        moreFields.add("ts");
-        moreFields.add(String.valueOf(ts));
-        moreFields.add("lc");
-        moreFields.add(String.valueOf(lastValueTime));
-        moreFields.add("hm_addr");
-        moreFields.add(address);
+        DatapointState state = di.getDatapointState(name);
         if (getID != null) {
-            moreFields.add("hm_getid");
-            moreFields.add(getID);
+            publishGetResult(topic, val, ts, state.update(val, ts), di.address, getID);
+            return;
+        }
+
+        StatusTemplate tpl = state.template;
+        if (tpl == null || !tpl.isFor(topic)) {
+            tpl = new StatusTemplate(topic, di, this);
+            state.template = tpl;
+        }
+        long lastValueTime;
+        if (isAction()) {
+            lastValueTime = state.update(val, ts);
+        } else {
+            lastValueTime = state.update(val, ts, tpl.policy, type == HMValueTypes.FLOAT);
+            if (lastValueTime < 0) {
+                return;
+            }
         }
-        if (unit != null && unit.length() != 0) {
-            moreFields.add("hm_unit");
-            moreFields.add(unit);
+        byte json[] = null;
+        if (StatusBatcher.isEnabled()) {
+            json = tpl.encodeJSON(val, ts, lastValueTime);
+            StatusBatcher.add(di, tpl, json);
+            if (!StatusBatcher.perDatapoint) {
+                return;
+            }
         }
-        if (type == HMValueTypes.ENUM) {
-            moreFields.add("hm_enum");
-            moreFields.add(enumValues[(Integer) val]);
+        byte payload[] = json != null && tpl.codec == StatusCodecs.JSON ? json : tpl.encode(val, ts, lastValueTime);
+        MQTTHandler.publish(tpl, payload, retain);
+    }
+
+    /*
+     * Answers a get request with the last known value if it was received no longer
+     * than maxAge ms ago. Returns false if there is no such value.
+     */
+    public boolean publishCached(DeviceInfo di, String topic, String getID, long maxAge) {
+        if (maxAge <= 0) {
+            return false;
+        }
+        DatapointState state = StateStore.getDevice(di.address).get(name);
+        if (state == null) {
+            return false;
+        }
+        long ts = System.currentTimeMillis();
+        Object val;
+        long lastValueTime;
+        synchronized (state) {
+            if (state.lastValue == null || ts - state.lastUpdateTime > maxAge) {
+                return false;
+            }
+            val = state.lastValue;
+            lastValueTime = state.lastValueTime;
         }
-        MQTTHandler.publish(topic + "/" + this.name, val, retain, moreFields.toArray(new String[0]));
+        publishGetResult(topic, val, ts, lastValueTime, di.address, getID);
+        return true;
+    }
+
+    // Get results go to whatever topic the request used, so there's no template
+    private void publishGetResult(String topic, Object val, long ts, long lastValueTime, String address, String getID) {
+        boolean isEnum = type == HMValueTypes.ENUM;
+        byte payload[] = StatusCodecs.forTopic(topic, this.name).encode(
+                val, ts, lastValueTime, address, getID, unit,
+                isEnum ? enumValues[(Integer) val] : null
+        );
+        MQTTHandler.publish(topic + "/" + this.name, payload, !isAction());
     }
 
     public Object convertedValue(String value) {
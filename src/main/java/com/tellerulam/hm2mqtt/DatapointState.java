@@ -0,0 +1,52 @@
+/*
+ * Runtime state of one datapoint of one device, as held by the StateStore
+ *
+ * Kept apart from DatapointInfo, which is shared by all channels of the same type.
+ * Read the values while synchronized on the instance.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+public final class DatapointState
+{
+	public Object lastValue;
+	// When lastValue was last received, and when it last changed
+	public long lastUpdateTime;
+	public long lastValueTime;
+
+	public Object lastPublishedValue;
+	public long lastPublishedTime;
+
+	volatile StatusTemplate template;
+
+	/*
+	 * Records a value, and returns the time of the last change
+	 */
+	public synchronized long update(Object val, long ts)
+	{
+		lastUpdateTime=ts;
+		if(!val.equals(lastValue))
+		{
+			lastValue=val;
+			lastValueTime=ts;
+		}
+		return lastValueTime;
+	}
+
+	/*
+	 * Records a value, and decides according to the policy whether to publish it.
+	 * Returns the time of the last change, or -1 if the value is to be suppressed.
+	 */
+	public synchronized long update(Object val, long ts, PublishPolicy policy, boolean isFloat)
+	{
+		long lc=update(val,ts);
+		if(!policy.shouldPublish(this,val,ts,isFloat))
+		{
+			policy.countSuppressed();
+			return -1;
+		}
+		lastPublishedValue=val;
+		lastPublishedTime=ts;
+		return lc;
+	}
+}
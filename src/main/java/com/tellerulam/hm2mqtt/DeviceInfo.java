@@ -1,5 +1,7 @@
 package com.tellerulam.hm2mqtt;
 
+import com.tellerulam.hm2mqtt.binary.HMXRDictionary;
+
 import java.io.*;
 import java.util.*;
 import java.util.logging.*;
@@ -11,6 +13,8 @@ public class DeviceInfo implements Serializable
 	public final int version;
 	public final String ifid;
 	public String name;
+	// Key into the ParamsetDescriptionCache, null for devices from old cache files
+	public String typeKey;
 
 	public Map<String,DatapointInfo> values;
 	public Map<String,DatapointInfo> params;
@@ -22,6 +26,20 @@ public class DeviceInfo implements Serializable
 		return values.get(valueName);
 	}
 
+	public DatapointState getDatapointState(String datapoint)
+	{
+		return StateStore.get(address,datapoint);
+	}
+
+	/*
+	 * Drop the precomputed topics and payload fields, e.g. after a rename
+	 */
+	void invalidateTemplates()
+	{
+		for(DatapointState s:StateStore.getDevice(address).values())
+			s.template=null;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -60,31 +78,124 @@ public class DeviceInfo implements Serializable
 		}
 	}
 
-	public static Collection<Map.Entry<String,DeviceInfo>> matchByPattern(String pattern)
+	/*
+	 * Returns the matching (name, device) entries, sorted by name. Patterns with a
+	 * literal prefix only look at the names starting with it.
+	 */
+	public static List<Map.Entry<String,DeviceInfo>> matchByPattern(String pattern)
 	{
-		Collection<Map.Entry<String,DeviceInfo>> res=new ArrayList<>();
-		Pattern p=Pattern.compile(pattern);
-		synchronized(devicesByName)
+		List<Map.Entry<String,DeviceInfo>> res=new ArrayList<>();
+		Pattern p=compilePattern(pattern);
+		String prefix=literalPrefix(pattern);
+		List<Map.Entry<String,DeviceInfo>> index=getNameIndex();
+		int start=0;
+		if(!prefix.isEmpty())
 		{
-			for(Map.Entry<String, DeviceInfo> de:devicesByName.entrySet())
+			// Binary search for the first name >= prefix
+			int lo=0,hi=index.size();
+			while(lo<hi)
 			{
-				//System.out.println("pattern="+pattern+" "+de.getKey());
-				Matcher m=p.matcher(de.getKey());
-				if(m.matches())
-					res.add(de);
+				int mid=(lo+hi)>>>1;
+				if(index.get(mid).getKey().compareTo(prefix)<0)
+					lo=mid+1;
+				else
+					hi=mid;
 			}
+			start=lo;
+		}
+		for(int ix=start;ix<index.size();ix++)
+		{
+			Map.Entry<String,DeviceInfo> de=index.get(ix);
+			if(!de.getKey().startsWith(prefix))
+				break;
+			if(p.matcher(de.getKey()).matches())
+				res.add(de);
 		}
 		return res;
 	}
 
-	public static DeviceInfo addNewDevice(String address, int version, String cbid)
+	private static final int patternCacheSize=64;
+	private static final Map<String,Pattern> patternCache=new LinkedHashMap<String,Pattern>(patternCacheSize,0.75f,true){
+		private static final long serialVersionUID=1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Pattern> eldest)
+		{
+			return size()>patternCacheSize;
+		}
+	};
+
+	private static Pattern compilePattern(String pattern)
 	{
+		synchronized(patternCache)
+		{
+			Pattern p=patternCache.get(pattern);
+			if(p==null)
+			{
+				p=Pattern.compile(pattern);
+				patternCache.put(pattern,p);
+			}
+			return p;
+		}
+	}
+
+	/*
+	 * The part of a regular expression which every match must start with. Stops
+	 * conservatively at the first special character.
+	 */
+	static String literalPrefix(String pattern)
+	{
+		if(pattern.indexOf('|')>=0)
+			return "";
+		int ix=0;
+		while(ix<pattern.length() && ".[]{}()*+?^$\\|".indexOf(pattern.charAt(ix))<0)
+			ix++;
+		// A quantifier applies to the preceding character, which thus is optional
+		if(ix<pattern.length() && ix>0 && "*?{".indexOf(pattern.charAt(ix))>=0)
+			ix--;
+		return pattern.substring(0,ix);
+	}
+
+	// Sorted snapshot of devicesByName, rebuilt on demand after changes
+	private static volatile List<Map.Entry<String,DeviceInfo>> nameIndex;
+	private static int nameIndexVersion;
+
+	private static List<Map.Entry<String,DeviceInfo>> getNameIndex()
+	{
+		List<Map.Entry<String,DeviceInfo>> index=nameIndex;
+		if(index!=null)
+			return index;
+		List<Map.Entry<String,DeviceInfo>> entries;
+		int version;
+		synchronized(devicesByName)
+		{
+			version=nameIndexVersion;
+			entries=new ArrayList<>(devicesByName.size());
+			for(Map.Entry<String,DeviceInfo> de:devicesByName.entrySet())
+				entries.add(new AbstractMap.SimpleImmutableEntry<>(de));
+		}
+		entries.sort((a,b)->a.getKey().compareTo(b.getKey()));
+		index=Collections.unmodifiableList(entries);
+		synchronized(devicesByName)
+		{
+			// Don't install a snapshot which is already outdated
+			if(version==nameIndexVersion)
+				nameIndex=index;
+		}
+		return index;
+	}
+
+	public static DeviceInfo addNewDevice(String address, int version, String cbid, String typeKey)
+	{
+		address=HMXRDictionary.intern(address);
 		DeviceInfo di=new DeviceInfo(address,version,cbid);
+		di.typeKey=typeKey;
 		di.setName(ReGaDeviceNameResolver.getNameForAddress(address));
 		synchronized(devices)
 		{
 			devices.put(address,di);
 		}
+		TopicRouter.bindAddress(address,di);
 		return di;
 	}
 
@@ -94,6 +205,8 @@ public class DeviceInfo implements Serializable
 		{
 			devices.remove(address);
 		}
+		TopicRouter.unbindAddress(address);
+		StateStore.removeDevice(address);
 	}
 
 	public static void saveDeviceInfos()
@@ -122,7 +235,9 @@ public class DeviceInfo implements Serializable
 			devices=(Map<String, DeviceInfo>)ois.readObject();
 			for(DeviceInfo di:devices.values())
 			{
+				di.internNames();
 				di.insertIntoNameList();
+				TopicRouter.bindAddress(di.address,di);
 			}
 			L.info("Read "+devices.size()+" devices from device cache file "+getDeviceCacheName());
 		}
@@ -167,6 +282,17 @@ public class DeviceInfo implements Serializable
 
 	private static Map<String,DeviceInfo> devicesByName=new HashMap<>();
 
+	/*
+	 * Make the deserialized address and datapoint names the canonical instances
+	 * the binary decoder hands out, and share the paramset descriptions
+	 */
+	private void internNames()
+	{
+		HMXRDictionary.intern(address);
+		values=ParamsetDescriptionCache.share(typeKey,"VALUES",values);
+		params=ParamsetDescriptionCache.share(typeKey,"MASTER",params);
+	}
+
 	private void insertIntoNameList()
 	{
 		if(name==null)
@@ -181,11 +307,16 @@ public class DeviceInfo implements Serializable
 					return;
 			}
 			devicesByName.put(name,this);
+			nameIndex=null;
+			nameIndexVersion++;
+			TopicRouter.bindName(name,this);
 		}
 	}
 
 	private void setName(String name)
 	{
+		if(!Objects.equals(name,this.name))
+			invalidateTemplates();
 		this.name=name;
 		insertIntoNameList();
 	}
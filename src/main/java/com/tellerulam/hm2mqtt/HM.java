@@ -1,6 +1,7 @@
 package com.tellerulam.hm2mqtt;
 
 import com.tellerulam.hm2mqtt.binary.HMXRConnection;
+import com.tellerulam.hm2mqtt.binary.HMXRFaultException;
 import com.tellerulam.hm2mqtt.binary.HMXRMsg;
 import com.tellerulam.hm2mqtt.binary.XMLRPCServer;
 import com.tellerulam.hm2mqtt.xml.HMXmlConnection;
@@ -13,12 +14,23 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class HM {
     private static final int hmIdleTimeout = Integer.getInteger("hm2mqtt.hm.idleTimeout", 120).intValue();
+    private static final boolean coalesceSets = Boolean.parseBoolean(System.getProperty("hm2mqtt.hm.coalesceSets", "true"));
     private static HM instance;
+    private static final SetValueCoalescer setValueCoalescer = coalesceSets ? new SetValueCoalescer(HM::sendValue) : null;
+    private static final PatternRules<Long> getMaxAge = PatternRules.fromProperty("hm.getMaxAge", s -> Long.valueOf(Long.parseLong(s) * 1000), Long.valueOf(0));
+    private static final Map<String, CompletableFuture<Object>> pendingGets = new ConcurrentHashMap<>();
+    private static final AtomicLong getRequests = new AtomicLong();
+    private static final AtomicLong getCached = new AtomicLong();
+    private static final AtomicLong getCollapsed = new AtomicLong();
     final private Map<String, HMConnection> connections = new HashMap<>();
     private final Logger L = Logger.getLogger(getClass().getName());
 
@@ -32,14 +44,13 @@ public class HM {
         }
     }
 
-    public static void dispatchEvent(List<?> parms) {
-        String cbid = parms.get(0).toString();
-        HMConnection c = instance.connections.get(cbid);
+    public static void dispatchEvent(HMEvent event) {
+        HMConnection c = instance.connections.get(event.cbid);
         if (c == null) {
-            instance.L.warning("Received event with unknown callback ID " + parms);
+            instance.L.warning("Received event with unknown callback ID " + event);
             return;
         }
-        c.handleEvent(parms);
+        c.handleEvent(event);
     }
 
     public static void dispatchNewDevices(List<?> parms) throws IOException, ParseException {
@@ -72,22 +83,94 @@ public class HM {
         return c.handleListDevices(parms);
     }
 
-    public static void setValue(DeviceInfo di, String datapoint, String value) {
+    public static CompletableFuture<Void> setValue(DeviceInfo di, String datapoint, String value) {
+        if (setValueCoalescer != null) {
+            return setValueCoalescer.submit(di, datapoint, value);
+        }
+        return sendValue(di, datapoint, value);
+    }
+
+    public static SetValueCoalescer getSetValueCoalescer() {
+        return setValueCoalescer;
+    }
+
+    public static long getGetRequests() {
+        return getRequests.get();
+    }
+
+    public static long getGetCached() {
+        return getCached.get();
+    }
+
+    public static long getGetCollapsed() {
+        return getCollapsed.get();
+    }
+
+    private static CompletableFuture<Void> sendValue(DeviceInfo di, String datapoint, String value) {
         HMConnection c = instance.connections.get(di.ifid);
         if (c == null) {
             instance.L.warning("Unable to find a HM connection for device " + di);
-            return;
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            f.completeExceptionally(new IllegalStateException("No HM connection for interface " + di.ifid));
+            return f;
         }
-        c.setValue(di, datapoint, value);
+        return c.setValue(di, datapoint, value);
     }
 
     public static void getValue(DeviceInfo di, String topic, String datapoint, String value) {
+        getValue(di, topic, datapoint, value, false);
+    }
+
+    /*
+     * Unless forced, answers from the StateStore if the last value is younger than
+     * hm.getMaxAge. Otherwise, asks the CCU; concurrent gets for the same datapoint
+     * share one request.
+     */
+    public static void getValue(final DeviceInfo di, final String topic, final String datapoint, final String value, boolean force) {
+        getRequests.incrementAndGet();
+        DatapointInfo cdpi = di.getValueDatapointInfo(datapoint);
+        if (!force && cdpi != null && !cdpi.isAction() && cdpi.publishCached(di, topic, value, getMaxAge.lookup(topic + "/" + datapoint).longValue())) {
+            getCached.incrementAndGet();
+            return;
+        }
         HMConnection c = instance.connections.get(di.ifid);
         if (c == null) {
             instance.L.warning("Unable to find a HM connection for device " + di);
             return;
         }
-        c.getValue(di, topic, datapoint, value);
+        final String key = di.address + "/" + datapoint;
+        CompletableFuture<Object> nf = new CompletableFuture<>();
+        CompletableFuture<Object> f = pendingGets.putIfAbsent(key, nf);
+        if (f == null) {
+            f = nf;
+            c.getValue(di, datapoint).whenComplete((val, t) -> {
+                pendingGets.remove(key, nf);
+                if (t != null) {
+                    nf.completeExceptionally(t);
+                } else {
+                    nf.complete(val);
+                }
+            });
+        } else {
+            getCollapsed.incrementAndGet();
+        }
+        f.whenComplete((val, t) -> {
+            if (t != null) {
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                if (cause instanceof HMXRFaultException) {
+                    instance.L.log(Level.INFO, "getValue on " + di + "/" + datapoint + " failed with " + cause.getMessage());
+                } else {
+                    instance.L.log(Level.WARNING, "Error when getting value " + datapoint + " from " + di, cause);
+                }
+                return;
+            }
+            DatapointInfo dpi = di.getValueDatapointInfo(datapoint);
+            if (dpi == null) {
+                instance.L.info("Unknown datapoint " + di.address + "." + datapoint + ", not publishing get result");
+                return;
+            }
+            dpi.publish(di, topic, val, value);
+        });
     }
 
     public static void reportValueUsage(DeviceInfo di, String datapoint, boolean active) {
@@ -6,15 +6,18 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
-public interface HMConnection {
+public interface HMConnection extends HMEventSink {
     void sendInit();
 
-    void handleEvent(List<?> parms);
-
-    void getValue(DeviceInfo di, String topic, String datapoint, String value);
+    /*
+     * The value related calls never block the caller; they complete
+     * (possibly exceptionally) once the interface process has replied.
+     */
+    CompletableFuture<Object> getValue(DeviceInfo di, String datapoint);
 
-    void setValue(DeviceInfo di, String datapoint, String value);
+    CompletableFuture<Void> setValue(DeviceInfo di, String datapoint, String value);
 
     void handleNewDevices(List<?> parms) throws IOException, ParseException;
 
@@ -29,7 +32,7 @@ public interface HMConnection {
     @SuppressWarnings("unchecked")
     Map<String, DatapointInfo> getParamsetDescription(String address, String which) throws IOException, ParseException;
 
-    void reportValueUsage(DeviceInfo di, String datapoint, boolean use);
+    CompletableFuture<Void> reportValueUsage(DeviceInfo di, String datapoint, boolean use);
 
     void sendPing();
 }
@@ -0,0 +1,80 @@
+/*
+ * A single inbound (callback id, address, datapoint, value) event
+ *
+ * Instances are reused by the receiving connection for every event, so
+ * handlers must not hold on to them beyond handleEvent().
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.math.*;
+import java.util.*;
+
+public final class HMEvent
+{
+	private static final int VT_OBJECT=0;
+	private static final int VT_INTEGER=1;
+	private static final int VT_BOOL=2;
+	private static final int VT_DOUBLE=4;
+
+	public String cbid;
+	public String address;
+	public String datapoint;
+
+	private int valueType;
+	private int intValue;
+	private boolean boolValue;
+	private double doubleValue;
+	private Object objectValue;
+
+	public void setInt(int v)
+	{
+		valueType=VT_INTEGER;
+		intValue=v;
+		objectValue=null;
+	}
+
+	public void setBool(boolean v)
+	{
+		valueType=VT_BOOL;
+		boolValue=v;
+		objectValue=null;
+	}
+
+	public void setDouble(double v)
+	{
+		valueType=VT_DOUBLE;
+		doubleValue=v;
+		objectValue=null;
+	}
+
+	public void setObject(Object v)
+	{
+		valueType=VT_OBJECT;
+		objectValue=v;
+	}
+
+	/*
+	 * The value boxed the same way the generic decoder would return it
+	 */
+	public Object getValue()
+	{
+		switch(valueType)
+		{
+			case VT_INTEGER:
+				return Integer.valueOf(intValue);
+			case VT_BOOL:
+				return Boolean.valueOf(boolValue);
+			case VT_DOUBLE:
+				return new BigDecimal(doubleValue).setScale(2,RoundingMode.HALF_DOWN);
+			default:
+				return objectValue;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return Arrays.asList(cbid,address,datapoint,getValue()).toString();
+	}
+}
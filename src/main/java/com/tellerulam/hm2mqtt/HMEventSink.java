@@ -0,0 +1,10 @@
+package com.tellerulam.hm2mqtt;
+
+/*
+ * Receives events decoded on the hot receive path. The event instance is
+ * only valid for the duration of the call.
+ */
+public interface HMEventSink
+{
+	void handleEvent(HMEvent event);
+}
@@ -0,0 +1,41 @@
+/*
+ * The default codec: {"val":..,"ts":"..","lc":"..","hm_addr":..,...}
+ *
+ * Set payloads are taken as the value itself, as before, or as a JSON object
+ * with a "val" member like the status payload.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.nio.charset.*;
+
+import com.eclipsesource.json.*;
+
+final class JSONStatusCodec implements StatusCodec
+{
+	@Override
+	public byte[] encode(Object val, long ts, long lc, String address, String getID, String unit, String enumValue)
+	{
+		return StatusPayloadWriter.get().write(val,ts,lc,address,getID,unit,enumValue,enumValue!=null);
+	}
+
+	@Override
+	public String decodeSet(byte payload[])
+	{
+		String data=new String(payload,StandardCharsets.UTF_8);
+		if(!data.startsWith("{"))
+			return data;
+		JsonValue val;
+		try
+		{
+			val=Json.parse(data).asObject().get("val");
+		}
+		catch(ParseException|UnsupportedOperationException e)
+		{
+			return data;
+		}
+		if(val==null)
+			return data;
+		return val.isString()?val.asString():val.toString();
+	}
+}
@@ -4,11 +4,9 @@ import java.io.*;
 import java.math.*;
 import java.nio.charset.*;
 import java.util.*;
-import java.util.concurrent.*;
 import java.util.logging.*;
 
 import org.eclipse.paho.client.mqttv3.*;
-import org.eclipse.paho.client.mqttv3.persist.*;
 
 import com.eclipsesource.json.*;
 
@@ -33,7 +31,12 @@ public class MQTTHandler
 		topicPrefix=tp;
 	}
 
-	private MqttClient mqttc;
+	private MQTTTransport mqttc;
+	private MQTTPublisher publisher;
+	// MQTT v5 only: static status fields as user properties, and expiry of ACTION events in ms
+	private boolean userProperties;
+	private long actionExpiry;
+	private final PublishRateLimiter rateLimiter=new PublishRateLimiter();
 
 	private void queueConnect()
 	{
@@ -75,13 +78,22 @@ public class MQTTHandler
 		{
 			String datapoint=topic.substring(slashIx+1,topic.length());
 			String address=topic.substring(0,slashIx);
-			String data=new String(msg.getPayload(),StandardCharsets.UTF_8);
+			String data;
+			if(isSet)
+				data=StatusCodecs.forTopic(address,datapoint).decodeSet(msg.getPayload());
+			else
+				data=new String(msg.getPayload(),StandardCharsets.UTF_8);
 
 			DeviceInfo di=DeviceInfo.getByName(address);
 			if(di==null)
 				di=DeviceInfo.getByAddress(address);
 			if(di==null)
 			{
+				if(isSet && SetFanout.isFanout(address))
+				{
+					SetFanout.set(address,datapoint,data);
+					return;
+				}
 				L.warning("Got "+(isSet?"set":"get")+" to unknown name/address "+address+", ignoring");
 				return;
 			}
@@ -92,6 +104,25 @@ public class MQTTHandler
 		}
 	}
 
+	void processSetGet(TopicRouter.Route r,MqttMessage msg,boolean isSet)
+	{
+		if(msg.isRetained())
+		{
+			L.fine("Ignoring retained set message "+msg+" to "+r.deviceKey+"/"+r.datapoint);
+			return;
+		}
+		DeviceInfo di=r.getDevice();
+		if(di==null)
+		{
+			L.warning("Got "+(isSet?"set":"get")+" to unknown name/address "+r.deviceKey+", ignoring");
+			return;
+		}
+		if(isSet)
+			HM.setValue(di,r.datapoint,StatusCodecs.forTopic(r.deviceKey,r.datapoint).decodeSet(msg.getPayload()));
+		else
+			HM.getValue(di,r.deviceKey,r.datapoint,new String(msg.getPayload(),StandardCharsets.UTF_8));
+	}
+
 	void processBind(String topic,boolean active)
 	{
 		int slashIx=topic.lastIndexOf('/');
@@ -113,11 +144,60 @@ public class MQTTHandler
 		}
 	}
 
-	private final Executor responseExecutor=Executors.newSingleThreadExecutor();
+	/*
+	 * Like get, but always asks the CCU instead of answering from the StateStore
+	 */
+	void processRefresh(String topic,MqttMessage msg)
+	{
+		int slashIx=topic==null?-1:topic.lastIndexOf('/');
+		if(slashIx<0)
+		{
+			L.warning("Got refresh without name/address and datapoint, ignoring");
+			return;
+		}
+		String datapoint=topic.substring(slashIx+1,topic.length());
+		String address=topic.substring(0,slashIx);
+		String data=new String(msg.getPayload(),StandardCharsets.UTF_8);
+
+		DeviceInfo di=DeviceInfo.getByName(address);
+		if(di==null)
+			di=DeviceInfo.getByAddress(address);
+		if(di==null)
+		{
+			L.warning("Got refresh to unknown name/address "+address+", ignoring");
+			return;
+		}
+		HM.getValue(di,address,datapoint,data,true);
+	}
 
+	private static final int listPageSize=Integer.getInteger("hm2mqtt.mqtt.listPageSize",0).intValue();
+
+	/*
+	 * With mqtt.listPageSize set, the result is split into pages of the form
+	 * {"page":1,"pages":3,"total":1234,"devices":[...]}
+	 */
 	void processList(String params)
 	{
-		Collection<Map.Entry<String,DeviceInfo>> devs=DeviceInfo.matchByPattern(params);
+		List<Map.Entry<String,DeviceInfo>> devs=DeviceInfo.matchByPattern(params);
+		if(listPageSize<=0)
+		{
+			publishResult("list",listToJson(devs).toString());
+			return;
+		}
+		int pages=Math.max((devs.size()+listPageSize-1)/listPageSize,1);
+		for(int page=0;page<pages;page++)
+		{
+			JsonObject jso=new JsonObject();
+			jso.add("page",page+1);
+			jso.add("pages",pages);
+			jso.add("total",devs.size());
+			jso.add("devices",listToJson(devs.subList(page*listPageSize,Math.min((page+1)*listPageSize,devs.size()))));
+			publishResult("list",jso.toString());
+		}
+	}
+
+	private static JsonArray listToJson(List<Map.Entry<String,DeviceInfo>> devs)
+	{
 		JsonArray array=new JsonArray();
 		for(Map.Entry<String,DeviceInfo> de:devs)
 		{
@@ -129,25 +209,112 @@ public class MQTTHandler
 			jso.add("ifid", de.getValue().ifid);
 			array.add(jso);
 		}
-		final MqttMessage msg=new MqttMessage(array.toString().getBytes(StandardCharsets.UTF_8));
-		msg.setQos(0);
-		msg.setRetained(false);
-		final String fullTopic=topicPrefix+"result/list";
-		System.out.println("C "+fullTopic);
-		responseExecutor.execute(new Runnable(){
-			@Override
-			public void run()
+		return array;
+	}
+
+	/*
+	 * Publishes the current state of all devices whose name matches the pattern
+	 * as {"name":{"DATAPOINT":{"val":..,"ts":..,"lc":..},...},...}
+	 */
+	void processSnapshot(String pattern)
+	{
+		if(pattern.isEmpty())
+			pattern=".*";
+		JsonObject devices=new JsonObject();
+		for(Map.Entry<String,DeviceInfo> de:DeviceInfo.matchByPattern(pattern))
+		{
+			Map<String,DatapointState> states=StateStore.getDevice(de.getValue().address);
+			if(states.isEmpty())
+				continue;
+			JsonObject dev=new JsonObject();
+			for(Map.Entry<String,DatapointState> se:states.entrySet())
 			{
-				try
+				DatapointState s=se.getValue();
+				JsonObject dp=new JsonObject();
+				synchronized(s)
 				{
-					mqttc.publish(fullTopic, msg);
-				}
-				catch(MqttException e)
-				{
-					L.log(Level.WARNING,"Error when publishing message "+msg,e);
+					if(s.lastValue==null)
+						continue;
+					dp.add("val",toJsonValue(s.lastValue));
+					dp.add("ts",s.lastUpdateTime);
+					dp.add("lc",s.lastValueTime);
 				}
+				dev.add(se.getKey(),dp);
 			}
-		});
+			devices.add(de.getKey(),dev);
+		}
+		publishResult("snapshot",devices.toString());
+	}
+
+	/*
+	 * Same representation as in status messages
+	 */
+	private static JsonValue toJsonValue(Object val)
+	{
+		if(val instanceof BigDecimal)
+			return Json.value(((BigDecimal)val).doubleValue());
+		else if(val instanceof Integer)
+			return Json.value(((Integer)val).intValue());
+		else if(val instanceof Boolean)
+			return Json.value(((Boolean)val).booleanValue()?1:0);
+		else
+			return Json.value(val.toString());
+	}
+
+	void processStats()
+	{
+		JsonObject jso=new JsonObject();
+		SetValueCoalescer svc=HM.getSetValueCoalescer();
+		if(svc!=null)
+		{
+			jso.add("set_submitted",svc.getSubmitted());
+			jso.add("set_sent",svc.getSent());
+			jso.add("set_coalesced",svc.getCoalesced());
+			jso.add("set_inflight",svc.getInFlight());
+		}
+		jso.add("get_requests",HM.getGetRequests());
+		jso.add("get_cached",HM.getGetCached());
+		jso.add("get_collapsed",HM.getGetCollapsed());
+		jso.add("publish_suppressed",PublishPolicy.getSuppressed());
+		jso.add("publish_ratelimited",rateLimiter.getLimited());
+		if(StatusBatcher.isEnabled())
+		{
+			jso.add("batch_published",StatusBatcher.getBatches());
+			jso.add("batch_entries",StatusBatcher.getEntries());
+		}
+		jso.add("mqtt_queued",publisher.getQueued());
+		jso.add("mqtt_inflight",publisher.getInFlight());
+		jso.add("mqtt_published",publisher.getPublished());
+		jso.add("mqtt_dropped",publisher.getDropped());
+		jso.add("mqtt_coalesced",publisher.getCoalesced());
+		jso.add("mqtt_failed",publisher.getFailed());
+		jso.add("mqtt_expired",publisher.getExpired());
+		MQTTSpool spool=publisher.getSpool();
+		if(spool!=null)
+		{
+			jso.add("spool_records",spool.getRecords());
+			jso.add("spool_bytes",spool.getBytes());
+			jso.add("spool_spooled",spool.getSpooled());
+			jso.add("spool_collapsed",spool.getCollapsed());
+			jso.add("spool_dropped",spool.getDropped());
+			jso.add("spool_replayed",spool.getReplayed());
+			jso.add("spool_expired",spool.getExpired());
+		}
+		publishResult("stats",jso.toString());
+	}
+
+	static void publishSetResult(String payload)
+	{
+		instance.publishResult("set",payload);
+	}
+
+	private void publishResult(String what,String payload)
+	{
+		MqttMessage msg=new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+		msg.setQos(0);
+		msg.setRetained(false);
+		// Mostly called from the MQTT callback thread, which must never wait for queue space
+		publisher.publish(topicPrefix+"result/"+what,msg,false);
 	}
 
 
@@ -157,8 +324,8 @@ public class MQTTHandler
 		int bix=command.indexOf('/');
 		if(bix>=0)
 		{
-			command.substring(0,bix);
 			params=command.substring(bix+1);
+			command=command.substring(0,bix);
 		}
 		L.info("Processing command "+command+" with params "+params);
 		switch(command)
@@ -172,6 +339,15 @@ public class MQTTHandler
 			case "list":
 				processList(new String(msg.getPayload(),"UTF-8"));
 				break;
+			case "stats":
+				processStats();
+				break;
+			case "refresh":
+				processRefresh(params,msg);
+				break;
+			case "snapshot":
+				processSnapshot(new String(msg.getPayload(),"UTF-8").trim());
+				break;
 			default:
 				L.warning("Unknown command "+command);
 		}
@@ -179,7 +355,27 @@ public class MQTTHandler
 
 	void processMessage(String topic,MqttMessage msg) throws UnsupportedEncodingException
 	{
-		topic=topic.substring(topicPrefix.length(),topic.length());
+		int plen=topicPrefix.length();
+		if(topic.startsWith("set/",plen))
+		{
+			TopicRouter.Route r=TopicRouter.route(topic,plen+4);
+			if(r!=null)
+			{
+				processSetGet(r,msg,true);
+				return;
+			}
+		}
+		else if(topic.startsWith("get/",plen))
+		{
+			TopicRouter.Route r=TopicRouter.route(topic,plen+4);
+			if(r!=null)
+			{
+				processSetGet(r,msg,false);
+				return;
+			}
+		}
+		// Not routed yet, or a command
+		topic=topic.substring(plen,topic.length());
 		if(topic.startsWith("set/"))
 			processSetGet(topic.substring(4),msg,true);
 		else if(topic.startsWith("get/"))
@@ -192,21 +388,14 @@ public class MQTTHandler
 	{
 		L.info("Connecting to MQTT broker "+mqttc.getServerURI()+" with CLIENTID="+mqttc.getClientId()+" and TOPIC PREFIX="+topicPrefix);
 
-		MqttConnectOptions copts=new MqttConnectOptions();
-		copts.setWill(topicPrefix+"connected", "0".getBytes(), 2, true);
-		copts.setCleanSession(true);
 		String username=System.getProperty("hm2mqtt.mqtt.username");
 		String password=System.getProperty("hm2mqtt.mqtt.password");
 		if(username!=null)
-		{
-			copts.setUserName(username);
-			copts.setPassword(password.toCharArray());
 			L.fine("Using MQTT username "+username);
-		}
 		try
 		{
-			mqttc.connect(copts);
-			mqttc.publish(topicPrefix+"connected", "2".getBytes(), 1, true);
+			mqttc.connect(topicPrefix+"connected","0".getBytes(),username,password);
+			mqttc.publishAndWait(topicPrefix+"connected","2".getBytes(),1,true);
 			L.info("Successfully connected to broker, subscribing to "+topicPrefix+"(set|get|command)/#");
 			try
 			{
@@ -225,15 +414,27 @@ public class MQTTHandler
 		{
 			L.log(Level.WARNING,"Error while connecting to MQTT broker, will retry: "+mqe.getMessage(),mqe);
 			queueConnect(); // Attempt reconnect
+			return;
 		}
+		// Send whatever was queued or spooled while we were disconnected
+		publisher.drain();
+		publisher.replaySpool();
 	}
 
 	private void doInit() throws MqttException
 	{
 		String server=System.getProperty("hm2mqtt.mqtt.server","tcp://localhost:1883");
 		String clientID=System.getProperty("hm2mqtt.mqtt.clientid","hm2mqtt");
-		mqttc=new MqttClient(server,clientID,new MemoryPersistence());
-		mqttc.setCallback(new MqttCallback() {
+		mqttc=MQTTTransport.create(server,clientID);
+		if(mqttc.getVersion()==5)
+		{
+			userProperties=Boolean.getBoolean("hm2mqtt.mqtt.userProperties");
+			actionExpiry=Integer.getInteger("hm2mqtt.mqtt.actionExpiry",60).intValue()*1000L;
+			L.info("Using MQTT v5"+(userProperties?" with status metadata as user properties":"")
+				+(actionExpiry>0?", ACTION events expire after "+actionExpiry/1000+"s":""));
+		}
+		publisher=new MQTTPublisher(mqttc);
+		mqttc.setCallback(new MQTTTransport.Callback() {
 			@Override
 			public void messageArrived(String topic, MqttMessage msg) throws Exception
 			{
@@ -247,11 +448,6 @@ public class MQTTHandler
 				}
 			}
 			@Override
-			public void deliveryComplete(IMqttDeliveryToken token)
-			{
-				/* Intentionally ignored */
-			}
-			@Override
 			public void connectionLost(Throwable t)
 			{
 				L.log(Level.WARNING,"Connection to MQTT broker lost",t);
@@ -262,47 +458,70 @@ public class MQTTHandler
 		Main.t.schedule(new StateChecker(),30*1000,30*1000);
 	}
 
-	private void doPublish(
-		String name,
-		Object val,
-		boolean retain,
-		String... more_fields
-	)
+	/*
+	 * Only regular status updates are rate limited; a newer value replacing a get
+	 * result or an ACTION event would leave a request unanswered or lose a keypress
+	 */
+	private void doPublish(String name,final String fullTopic,final MqttMessage msg,boolean rateLimited)
 	{
-		JsonObject jso=new JsonObject();
+		msg.setQos(0);
+		if(rateLimited)
+			rateLimiter.submit(name,mayBlock->publisher.publish(fullTopic,msg,mayBlock));
+		else
+			publisher.publish(fullTopic,msg,true);
+	}
 
-		if(val instanceof BigDecimal)
-			jso.add("val",((BigDecimal)val).doubleValue());
-		else if(val instanceof Integer)
-			jso.add("val",((Integer)val).intValue());
-		else if(val instanceof Boolean)
-			jso.add("val",((Boolean)val).booleanValue()?1:0);
+	/*
+	 * Publishes the result of a get request. The payload is written by a StatusCodec.
+	 */
+	public static void publish(String name,byte payload[],boolean retain)
+	{
+		MqttMessage msg=new MqttMessage(payload);
+		msg.setRetained(retain);
+		instance.doPublish(name,statusTopic(name),msg,false);
+	}
+
+	static void publish(StatusTemplate tpl,byte payload[],boolean retain)
+	{
+		MqttMessage msg;
+		if(tpl.userProperties!=null || tpl.expiry>0)
+			msg=new MQTTPropertyMessage(payload,tpl.userProperties!=null?tpl.userProperties:NO_PROPERTIES,
+				tpl.expiry>0?System.currentTimeMillis()+tpl.expiry:0);
 		else
-			jso.add("val",val.toString());
+			msg=new MqttMessage(payload);
+		msg.setRetained(retain);
+		instance.doPublish(tpl.name,tpl.topic,msg,!tpl.isAction);
+	}
 
-		assert(more_fields.length%2==0);
-		for(int mfix=0;mfix<more_fields.length;mfix+=2)
-			jso.add(more_fields[mfix],more_fields[mfix+1]);
+	private static final String NO_PROPERTIES[]=new String[0];
 
-		String txtmsg=jso.toString();
-		MqttMessage msg=new MqttMessage(txtmsg.getBytes(StandardCharsets.UTF_8));
+	static void publishBatch(String key,byte payload[],boolean mayBlock)
+	{
+		MqttMessage msg=new MqttMessage(payload);
 		msg.setQos(0);
-		msg.setRetained(retain);
-		try
-		{
-			String fullTopic=topicPrefix+"status/"+name;
-			mqttc.publish(fullTopic, msg);
-			L.finer("Published "+txtmsg+" to "+fullTopic+(retain?" (R)":""));
-		}
-		catch(MqttException e)
-		{
-			L.log(Level.WARNING,"Error when publishing message "+txtmsg,e);
-		}
+		msg.setRetained(false);
+		instance.publisher.publish(instance.topicPrefix+"batch/"+key,msg,mayBlock);
+	}
+
+	/*
+	 * Whether hm_addr and hm_unit go to user properties instead of the status payload
+	 */
+	static boolean useUserProperties()
+	{
+		return instance.userProperties;
+	}
+
+	/*
+	 * Expiry for ACTION events in ms, or 0
+	 */
+	static long getActionExpiry()
+	{
+		return instance.actionExpiry;
 	}
 
-	public static void publish(String name, Object val, boolean retain,String... more_fields)
+	static String statusTopic(String name)
 	{
-		instance.doPublish(name,val,retain,more_fields);
+		return instance.topicPrefix+"status/"+name;
 	}
 
 }
@@ -0,0 +1,29 @@
+/*
+ * A message with MQTT v5 properties: user properties, and an absolute
+ * expiry time from which the message expiry interval is derived when
+ * the message is actually sent. Over MQTT 3.1.1, these are ignored.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+final class MQTTPropertyMessage extends MqttMessage
+{
+	// Pairs of key and value, may be empty
+	final String userProperties[];
+	// System.currentTimeMillis() after which the message is no longer sent, or 0
+	final long expires;
+
+	MQTTPropertyMessage(byte payload[],String userProperties[],long expires)
+	{
+		super(payload);
+		this.userProperties=userProperties;
+		this.expires=expires;
+	}
+
+	boolean isExpired(long now)
+	{
+		return expires!=0 && now>=expires;
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Asynchronous publishing pipeline in front of the MQTT client
+ *
+ * Messages are queued and handed to the MQTTTransport with at most
+ * mqtt.maxInflight publishes outstanding, so a slow broker no longer
+ * stalls the threads which deliver CCU events. While the broker is
+ * unreachable, messages stay queued. What happens when the queue is full
+ * is up to the overflow policy:
+ *
+ *  block      the publishing thread waits for space
+ *  dropoldest the oldest queued message is discarded
+ *  coalesce   a queued message to the same topic is replaced by the newer
+ *             one; if there is none, the oldest queued message is discarded
+ *
+ * In coalesce mode, replacing happens regardless of the queue being full.
+ *
+ * With mqtt.spoolFile set, messages published while the broker is unreachable
+ * go to an MQTTSpool on disk instead, and are replayed after reconnecting at
+ * no more than mqtt.spoolReplayRate messages per second.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.util.*;
+import java.util.logging.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+final class MQTTPublisher
+{
+	private static final Logger L=Logger.getLogger(MQTTPublisher.class.getName());
+
+	enum OverflowPolicy
+	{
+		BLOCK,
+		DROPOLDEST,
+		COALESCE
+	}
+
+	private static final class Pending
+	{
+		final String topic;
+		MqttMessage msg;
+
+		Pending(String topic,MqttMessage msg)
+		{
+			this.topic=topic;
+			this.msg=msg;
+		}
+	}
+
+	private final MQTTTransport mqttc;
+	private final int maxInflight;
+	private final int maxQueued;
+	private final OverflowPolicy policy;
+	private final MQTTSpool spool;
+	private final int replayBatch;
+	private TimerTask replayTask;
+
+	private final Deque<Pending> queue=new ArrayDeque<>();
+	private final Map<String,Pending> queuedByTopic=new HashMap<>();
+	private int inFlight;
+
+	private long published;
+	private long dropped;
+	private long coalesced;
+	private long failed;
+	private long expired;
+
+	private final MQTTTransport.Completion completion=new MQTTTransport.Completion(){
+		@Override
+		public void completed(String topic,Throwable t)
+		{
+			synchronized(MQTTPublisher.this)
+			{
+				inFlight--;
+				if(t==null)
+					published++;
+				else
+					failed++;
+			}
+			if(t!=null)
+				L.log(Level.FINE,"Error when publishing to "+topic,t);
+			drain();
+		}
+	};
+
+	MQTTPublisher(MQTTTransport mqttc)
+	{
+		this.mqttc=mqttc;
+		maxInflight=Math.max(Integer.getInteger("hm2mqtt.mqtt.maxInflight",10).intValue(),1);
+		maxQueued=Math.max(Integer.getInteger("hm2mqtt.mqtt.queueSize",1000).intValue(),1);
+		policy=OverflowPolicy.valueOf(System.getProperty("hm2mqtt.mqtt.overflow","dropoldest").toUpperCase());
+		L.info("Publishing with at most "+maxInflight+" messages in flight, "+maxQueued+" queued, overflow policy "+policy);
+		spool=MQTTSpool.open();
+		// Replay runs every 100ms
+		replayBatch=Math.max(Integer.getInteger("hm2mqtt.mqtt.spoolReplayRate",100).intValue()/10,1);
+	}
+
+	/*
+	 * Queues a message. Callers which must never wait, like the MQTT callback thread
+	 * itself, pass mayBlock=false and get drop-oldest behaviour under the block policy.
+	 */
+	void publish(String topic,MqttMessage msg,boolean mayBlock)
+	{
+		if(spool!=null && spool.offer(topic,msg,mqttc.isConnected()))
+			return;
+		enqueue(topic,msg,mayBlock);
+	}
+
+	private void enqueue(String topic,MqttMessage msg,boolean mayBlock)
+	{
+		synchronized(this)
+		{
+			if(policy==OverflowPolicy.COALESCE)
+			{
+				Pending p=queuedByTopic.get(topic);
+				if(p!=null)
+				{
+					p.msg=msg;
+					coalesced++;
+					return;
+				}
+			}
+			while(queue.size()>=maxQueued)
+			{
+				if(policy==OverflowPolicy.BLOCK && mayBlock)
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						dropped++;
+						return;
+					}
+					continue;
+				}
+				Pending old=queue.pollFirst();
+				queuedByTopic.remove(old.topic,old);
+				dropped++;
+			}
+			Pending p=new Pending(topic,msg);
+			queue.addLast(p);
+			if(policy==OverflowPolicy.COALESCE)
+				queuedByTopic.put(topic,p);
+		}
+		drain();
+	}
+
+	/*
+	 * Hands queued messages to the client while the in-flight window allows.
+	 * Also called after (re)connecting.
+	 */
+	void drain()
+	{
+		for(;;)
+		{
+			Pending p;
+			synchronized(this)
+			{
+				if(inFlight>=maxInflight || queue.isEmpty() || !mqttc.isConnected())
+					return;
+				p=queue.pollFirst();
+				queuedByTopic.remove(p.topic,p);
+				notifyAll();
+				if(p.msg instanceof MQTTPropertyMessage && ((MQTTPropertyMessage)p.msg).isExpired(System.currentTimeMillis()))
+				{
+					expired++;
+					continue;
+				}
+				inFlight++;
+			}
+			try
+			{
+				mqttc.publish(p.topic,p.msg,completion);
+				if(L.isLoggable(Level.FINER))
+					L.finer("Published "+p.msg+" to "+p.topic+(p.msg.isRetained()?" (R)":""));
+			}
+			catch(MqttException e)
+			{
+				synchronized(this)
+				{
+					inFlight--;
+					failed++;
+				}
+				L.log(Level.WARNING,"Error when publishing message "+p.msg+" to "+p.topic,e);
+			}
+		}
+	}
+
+	/*
+	 * Starts feeding spooled messages into the queue. Called after (re)connecting;
+	 * the replay stops by itself when the spool is empty or the connection is lost.
+	 *
+	 * The spool lock is always taken before ours (see replayStep()), so the spool
+	 * is never queried while holding our monitor.
+	 */
+	void replaySpool()
+	{
+		if(spool==null)
+			return;
+		int records=spool.getRecords();
+		if(records==0)
+			return;
+		synchronized(this)
+		{
+			if(replayTask!=null)
+				return;
+			L.info("Replaying "+records+" spooled messages");
+			replayTask=new TimerTask(){
+				@Override
+				public void run()
+				{
+					replayStep();
+				}
+			};
+			Main.t.schedule(replayTask,0,100);
+		}
+	}
+
+	private void replayStep()
+	{
+		for(int ix=0;ix<replayBatch;ix++)
+		{
+			boolean done=!mqttc.isConnected() || spool.getRecords()==0;
+			synchronized(this)
+			{
+				if(done)
+				{
+					replayTask.cancel();
+					replayTask=null;
+					return;
+				}
+				// Leave room in the queue for live traffic
+				if(queue.size()>=maxInflight)
+					return;
+			}
+			// Queue while holding the spool lock, so a concurrent publish
+			// which finds the spool empty can't overtake the last record
+			synchronized(spool)
+			{
+				MQTTSpool.Record r=spool.poll();
+				if(r!=null)
+					enqueue(r.topic,r.msg,false);
+			}
+		}
+	}
+
+	MQTTSpool getSpool()
+	{
+		return spool;
+	}
+
+	synchronized int getQueued()
+	{
+		return queue.size();
+	}
+
+	synchronized int getInFlight()
+	{
+		return inFlight;
+	}
+
+	synchronized long getPublished()
+	{
+		return published;
+	}
+
+	synchronized long getDropped()
+	{
+		return dropped;
+	}
+
+	synchronized long getCoalesced()
+	{
+		return coalesced;
+	}
+
+	synchronized long getFailed()
+	{
+		return failed;
+	}
+
+	synchronized long getExpired()
+	{
+		return expired;
+	}
+}
@@ -0,0 +1,419 @@
+/*
+ * Memory-mapped spool for messages published while the broker is unreachable
+ *
+ * The spool file is a fixed size log of records, which survives restarts:
+ *
+ *   header:  int magic, int readPos, int writePos
+ *   record:  int length (of the rest), byte live, byte flags,
+ *            short topic length, topic (UTF-8), [properties], payload
+ *
+ * Flag bit 0 is the retained flag. Bit 1 marks an MQTTPropertyMessage, whose
+ * properties follow the topic: long expiry time, short number of user property
+ * strings, and each string as short length and UTF-8 bytes. Expired messages
+ * are skipped on replay.
+ *
+ * A retained message supersedes an older spooled retained message to the
+ * same topic, which is marked dead and skipped on replay. When the file is
+ * full, live records are compacted to the front; if that doesn't free enough
+ * space, the new message is dropped.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.logging.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+final class MQTTSpool
+{
+	private static final Logger L=Logger.getLogger(MQTTSpool.class.getName());
+
+	private static final int MAGIC=0x484d5331; // "HMS1"
+	private static final int HEADER=12;
+	private static final int RECORD_OVERHEAD=4+1+1+2;
+	private static final int FLAG_RETAINED=1;
+	private static final int FLAG_PROPERTIES=2;
+
+	static final class Record
+	{
+		final String topic;
+		final MqttMessage msg;
+
+		Record(String topic,MqttMessage msg)
+		{
+			this.topic=topic;
+			this.msg=msg;
+		}
+	}
+
+	private final MappedByteBuffer buf;
+	private int readPos;
+	private int writePos;
+	private int records;
+	// Position of the newest live retained record per topic
+	private final Map<String,Integer> retainedByTopic=new HashMap<>();
+
+	private long spooled;
+	private long collapsed;
+	private long dropped;
+	private long replayed;
+	private long expired;
+
+	private MQTTSpool(MappedByteBuffer buf)
+	{
+		this.buf=buf;
+	}
+
+	/*
+	 * Opens the spool configured with mqtt.spoolFile, or returns null if there is none
+	 */
+	static MQTTSpool open()
+	{
+		String filename=System.getProperty("hm2mqtt.mqtt.spoolFile");
+		if(filename==null)
+			return null;
+		long size=Math.max(Long.getLong("hm2mqtt.mqtt.spoolSize",16).longValue(),1)*1024*1024;
+		if(size>Integer.MAX_VALUE)
+		{
+			L.warning("MQTT spool size of "+size/1024/1024+"MB is too large, the maximum is "+Integer.MAX_VALUE/1024/1024+"MB; messages published while disconnected will be dropped");
+			return null;
+		}
+		try(RandomAccessFile raf=new RandomAccessFile(filename,"rw"))
+		{
+			// The mapping stays valid after the channel is closed
+			MQTTSpool s=new MQTTSpool(raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,size));
+			s.recover();
+			L.info("Using MQTT spool file "+filename+" with "+size/1024+"KB, "+s.records+" messages pending");
+			return s;
+		}
+		catch(IOException e)
+		{
+			L.log(Level.WARNING,"Unable to open MQTT spool file "+filename+", messages published while disconnected will be dropped",e);
+			return null;
+		}
+	}
+
+	private void recover()
+	{
+		if(buf.getInt(0)!=MAGIC)
+		{
+			reset();
+			return;
+		}
+		readPos=buf.getInt(4);
+		writePos=buf.getInt(8);
+		if(readPos<HEADER || writePos>buf.capacity() || readPos>writePos)
+		{
+			L.warning("MQTT spool file is inconsistent, discarding its contents");
+			reset();
+			return;
+		}
+		for(int pos=readPos;pos<writePos;pos+=4+buf.getInt(pos))
+		{
+			if(!isValid(pos))
+			{
+				discard(pos);
+				return;
+			}
+			if(buf.get(pos+4)==0)
+				continue;
+			records++;
+			if((buf.get(pos+5)&FLAG_RETAINED)!=0)
+			{
+				Integer old=retainedByTopic.put(readTopic(pos),Integer.valueOf(pos));
+				if(old!=null)
+					kill(old.intValue());
+			}
+		}
+	}
+
+	/*
+	 * Checks that the record at pos lies within the used part of the file,
+	 * and that its topic and properties fit into it
+	 */
+	private boolean isValid(int pos)
+	{
+		if(pos<HEADER || pos>writePos-RECORD_OVERHEAD)
+			return false;
+		int len=buf.getInt(pos);
+		if(len<RECORD_OVERHEAD-4 || len>writePos-pos-4)
+			return false;
+		int end=pos+4+len;
+		int p=pos+RECORD_OVERHEAD+(buf.getShort(pos+6)&0xffff);
+		if(p>end)
+			return false;
+		if((buf.get(pos+5)&FLAG_PROPERTIES)!=0)
+		{
+			if(p+8+2>end)
+				return false;
+			int count=buf.getShort(p+8)&0xffff;
+			p+=8+2;
+			for(int ix=0;ix<count;ix++)
+			{
+				if(p+2>end)
+					return false;
+				p+=2+(buf.getShort(p)&0xffff);
+				if(p>end)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Throws away the spool contents after finding a corrupt record
+	 */
+	private void discard(int pos)
+	{
+		L.warning("MQTT spool file has a corrupt record at offset "+pos+", discarding its contents");
+		dropped+=records;
+		reset();
+	}
+
+	private void reset()
+	{
+		readPos=writePos=HEADER;
+		records=0;
+		retainedByTopic.clear();
+		buf.putInt(0,MAGIC);
+		writeHeader();
+	}
+
+	private void writeHeader()
+	{
+		buf.putInt(4,readPos);
+		buf.putInt(8,writePos);
+	}
+
+	private String readTopic(int pos)
+	{
+		int topicLen=buf.getShort(pos+6)&0xffff;
+		byte topic[]=new byte[topicLen];
+		for(int ix=0;ix<topicLen;ix++)
+			topic[ix]=buf.get(pos+RECORD_OVERHEAD+ix);
+		return new String(topic,StandardCharsets.UTF_8);
+	}
+
+	private void kill(int pos)
+	{
+		if(buf.get(pos+4)!=0)
+		{
+			buf.put(pos+4,(byte)0);
+			records--;
+			collapsed++;
+		}
+	}
+
+	/*
+	 * Spools the message if the broker is unreachable, or if earlier spooled messages
+	 * are still waiting to be replayed (to keep the order). Returns false if the
+	 * message can be published right away.
+	 */
+	synchronized boolean offer(String topic,MqttMessage msg,boolean connected)
+	{
+		if(connected && records==0)
+			return false;
+		append(topic,msg);
+		return true;
+	}
+
+	private void append(String topic,MqttMessage msg)
+	{
+		byte topicBytes[]=topic.getBytes(StandardCharsets.UTF_8);
+		byte payload[]=msg.getPayload();
+		MQTTPropertyMessage pm=msg instanceof MQTTPropertyMessage?(MQTTPropertyMessage)msg:null;
+		byte props[][]=null;
+		int len=RECORD_OVERHEAD+topicBytes.length+payload.length;
+		if(pm!=null)
+		{
+			props=new byte[pm.userProperties.length][];
+			len+=8+2;
+			for(int ix=0;ix<props.length;ix++)
+			{
+				props[ix]=pm.userProperties[ix].getBytes(StandardCharsets.UTF_8);
+				len+=2+props[ix].length;
+			}
+		}
+		if(topicBytes.length>0xffff || len>buf.capacity()-HEADER)
+		{
+			dropped++;
+			return;
+		}
+		if(writePos+len>buf.capacity())
+		{
+			compact();
+			if(writePos+len>buf.capacity())
+			{
+				dropped++;
+				return;
+			}
+		}
+		int pos=writePos;
+		buf.putInt(pos,len-4);
+		buf.put(pos+4,(byte)1);
+		buf.put(pos+5,(byte)((msg.isRetained()?FLAG_RETAINED:0)|(pm!=null?FLAG_PROPERTIES:0)));
+		buf.putShort(pos+6,(short)topicBytes.length);
+		buf.position(pos+RECORD_OVERHEAD);
+		buf.put(topicBytes);
+		if(pm!=null)
+		{
+			buf.putLong(pm.expires);
+			buf.putShort((short)props.length);
+			for(byte prop[]:props)
+			{
+				buf.putShort((short)prop.length);
+				buf.put(prop);
+			}
+		}
+		buf.put(payload);
+		writePos+=len;
+		records++;
+		spooled++;
+		if(msg.isRetained())
+		{
+			Integer old=retainedByTopic.put(topic,Integer.valueOf(pos));
+			if(old!=null)
+				kill(old.intValue());
+		}
+		writeHeader();
+	}
+
+	/*
+	 * Moves all live records to the front of the file. Records only ever move
+	 * towards lower positions, so copying them in order is safe.
+	 */
+	private void compact()
+	{
+		int to=HEADER;
+		retainedByTopic.clear();
+		for(int pos=readPos;pos<writePos;)
+		{
+			if(!isValid(pos))
+			{
+				discard(pos);
+				return;
+			}
+			int len=4+buf.getInt(pos);
+			if(buf.get(pos+4)!=0)
+			{
+				if(to!=pos)
+				{
+					byte rec[]=new byte[len];
+					buf.position(pos);
+					buf.get(rec);
+					buf.position(to);
+					buf.put(rec);
+				}
+				if((buf.get(to+5)&FLAG_RETAINED)!=0)
+					retainedByTopic.put(readTopic(to),Integer.valueOf(to));
+				to+=len;
+			}
+			pos+=len;
+		}
+		readPos=HEADER;
+		writePos=to;
+		writeHeader();
+	}
+
+	/*
+	 * Takes the oldest live message off the spool, or returns null if it's empty
+	 */
+	synchronized Record poll()
+	{
+		while(readPos<writePos)
+		{
+			int pos=readPos;
+			if(!isValid(pos))
+			{
+				discard(pos);
+				return null;
+			}
+			int len=4+buf.getInt(pos);
+			readPos+=len;
+			if(buf.get(pos+4)==0)
+				continue;
+			int flags=buf.get(pos+5);
+			String topic=readTopic(pos);
+			if((flags&FLAG_RETAINED)!=0)
+				retainedByTopic.remove(topic,Integer.valueOf(pos));
+			records--;
+			buf.position(pos+RECORD_OVERHEAD+(buf.getShort(pos+6)&0xffff));
+			MqttMessage msg;
+			if((flags&FLAG_PROPERTIES)!=0)
+			{
+				long expires=buf.getLong();
+				String props[]=new String[buf.getShort()&0xffff];
+				for(int ix=0;ix<props.length;ix++)
+				{
+					byte prop[]=new byte[buf.getShort()&0xffff];
+					buf.get(prop);
+					props[ix]=new String(prop,StandardCharsets.UTF_8);
+				}
+				byte payload[]=new byte[pos+len-buf.position()];
+				buf.get(payload);
+				msg=new MQTTPropertyMessage(payload,props,expires);
+				if(((MQTTPropertyMessage)msg).isExpired(System.currentTimeMillis()))
+				{
+					expired++;
+					continue;
+				}
+			}
+			else
+			{
+				byte payload[]=new byte[pos+len-buf.position()];
+				buf.get(payload);
+				msg=new MqttMessage(payload);
+			}
+			msg.setQos(0);
+			msg.setRetained((flags&FLAG_RETAINED)!=0);
+			replayed++;
+			if(records==0)
+				reset();
+			else
+				writeHeader();
+			return new Record(topic,msg);
+		}
+		reset();
+		return null;
+	}
+
+	synchronized int getRecords()
+	{
+		return records;
+	}
+
+	synchronized int getBytes()
+	{
+		return writePos-readPos;
+	}
+
+	synchronized long getSpooled()
+	{
+		return spooled;
+	}
+
+	synchronized long getCollapsed()
+	{
+		return collapsed;
+	}
+
+	synchronized long getDropped()
+	{
+		return dropped;
+	}
+
+	synchronized long getReplayed()
+	{
+		return replayed;
+	}
+
+	synchronized long getExpired()
+	{
+		return expired;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * The MQTT client as seen by MQTTHandler and MQTTPublisher
+ *
+ * Messages are passed around as mqttv3 MqttMessage regardless of the protocol
+ * version; an MQTTPropertyMessage carries what only MQTT v5 can transport. Which
+ * implementation is used is selected with mqtt.version.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+interface MQTTTransport
+{
+	interface Callback
+	{
+		void messageArrived(String topic,MqttMessage msg) throws Exception;
+		void connectionLost(Throwable t);
+	}
+
+	/*
+	 * Called when an asynchronous publish has completed; failure is null on success
+	 */
+	interface Completion
+	{
+		void completed(String topic,Throwable failure);
+	}
+
+	static MQTTTransport create(String server,String clientID) throws MqttException
+	{
+		int version=Integer.getInteger("hm2mqtt.mqtt.version",3).intValue();
+		switch(version)
+		{
+			case 3:
+				return new MQTTv3Transport(server,clientID);
+			case 5:
+				return new MQTTv5Transport(server,clientID);
+			default:
+				throw new IllegalArgumentException("Unsupported MQTT version "+version+", must be 3 or 5");
+		}
+	}
+
+	int getVersion();
+	String getServerURI();
+	String getClientId();
+	boolean isConnected();
+	void setCallback(Callback cb);
+
+	/*
+	 * Blocks until connected
+	 */
+	void connect(String willTopic,byte will[],String username,String password) throws MqttException;
+
+	/*
+	 * Blocks until the subscription has been acknowledged
+	 */
+	void subscribe(String topicFilter,int qos) throws MqttException;
+
+	/*
+	 * Blocks until the message has been delivered according to its QoS
+	 */
+	void publishAndWait(String topic,byte payload[],int qos,boolean retained) throws MqttException;
+
+	void publish(String topic,MqttMessage msg,Completion completion) throws MqttException;
+}
@@ -0,0 +1,108 @@
+/*
+ * MQTT 3.1.1 transport, using the Paho mqttv3 client
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.persist.*;
+
+final class MQTTv3Transport implements MQTTTransport
+{
+	private final MqttAsyncClient mqttc;
+
+	MQTTv3Transport(String server,String clientID) throws MqttException
+	{
+		mqttc=new MqttAsyncClient(server,clientID,new MemoryPersistence());
+	}
+
+	@Override
+	public int getVersion()
+	{
+		return 3;
+	}
+
+	@Override
+	public String getServerURI()
+	{
+		return mqttc.getServerURI();
+	}
+
+	@Override
+	public String getClientId()
+	{
+		return mqttc.getClientId();
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return mqttc.isConnected();
+	}
+
+	@Override
+	public void setCallback(final Callback cb)
+	{
+		mqttc.setCallback(new MqttCallback() {
+			@Override
+			public void messageArrived(String topic, MqttMessage msg) throws Exception
+			{
+				cb.messageArrived(topic,msg);
+			}
+			@Override
+			public void deliveryComplete(IMqttDeliveryToken token)
+			{
+				/* Intentionally ignored */
+			}
+			@Override
+			public void connectionLost(Throwable t)
+			{
+				cb.connectionLost(t);
+			}
+		});
+	}
+
+	@Override
+	public void connect(String willTopic,byte will[],String username,String password) throws MqttException
+	{
+		MqttConnectOptions copts=new MqttConnectOptions();
+		copts.setWill(willTopic,will,2,true);
+		copts.setCleanSession(true);
+		if(username!=null)
+		{
+			copts.setUserName(username);
+			copts.setPassword(password.toCharArray());
+		}
+		mqttc.connect(copts).waitForCompletion();
+	}
+
+	@Override
+	public void subscribe(String topicFilter,int qos) throws MqttException
+	{
+		mqttc.subscribe(topicFilter,qos).waitForCompletion();
+	}
+
+	@Override
+	public void publishAndWait(String topic,byte payload[],int qos,boolean retained) throws MqttException
+	{
+		mqttc.publish(topic,payload,qos,retained).waitForCompletion();
+	}
+
+	@Override
+	public void publish(final String topic,MqttMessage msg,final Completion completion) throws MqttException
+	{
+		mqttc.publish(topic,msg,null,new IMqttActionListener(){
+			@Override
+			public void onSuccess(IMqttToken token)
+			{
+				completion.completed(topic,null);
+			}
+
+			@Override
+			public void onFailure(IMqttToken token,Throwable t)
+			{
+				completion.completed(topic,t);
+			}
+		});
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * MQTT v5 transport, using the Paho mqttv5 client
+ *
+ * Paho assigns topic aliases to outgoing topics by itself once the broker
+ * announces a Topic Alias Maximum, so repeated status topics are only sent
+ * in full once per connection. MQTTPropertyMessages additionally carry
+ * user properties and a message expiry interval.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.nio.charset.*;
+import java.util.*;
+import java.util.logging.*;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+final class MQTTv5Transport implements MQTTTransport
+{
+	private static final Logger L=Logger.getLogger(MQTTv5Transport.class.getName());
+
+	private final MqttAsyncClient mqttc;
+
+	MQTTv5Transport(String server,String clientID) throws MqttException
+	{
+		try
+		{
+			mqttc=new MqttAsyncClient(server,clientID,new MemoryPersistence());
+		}
+		catch(org.eclipse.paho.mqttv5.common.MqttException e)
+		{
+			throw wrap(e);
+		}
+	}
+
+	private static MqttException wrap(org.eclipse.paho.mqttv5.common.MqttException e)
+	{
+		return new MqttException(e.getReasonCode(),e);
+	}
+
+	@Override
+	public int getVersion()
+	{
+		return 5;
+	}
+
+	@Override
+	public String getServerURI()
+	{
+		return mqttc.getServerURI();
+	}
+
+	@Override
+	public String getClientId()
+	{
+		return mqttc.getClientId();
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return mqttc.isConnected();
+	}
+
+	@Override
+	public void setCallback(final Callback cb)
+	{
+		mqttc.setCallback(new MqttCallback() {
+			@Override
+			public void messageArrived(String topic, org.eclipse.paho.mqttv5.common.MqttMessage msg) throws Exception
+			{
+				MqttMessage m=new MqttMessage(msg.getPayload());
+				m.setQos(msg.getQos());
+				m.setRetained(msg.isRetained());
+				cb.messageArrived(topic,m);
+			}
+			@Override
+			public void disconnected(MqttDisconnectResponse resp)
+			{
+				cb.connectionLost(resp.getException()!=null?resp.getException():new Exception(resp.toString()));
+			}
+			@Override
+			public void mqttErrorOccurred(org.eclipse.paho.mqttv5.common.MqttException e)
+			{
+				L.log(Level.WARNING,"MQTT error",e);
+			}
+			@Override
+			public void deliveryComplete(IMqttToken token)
+			{
+				/* Intentionally ignored */
+			}
+			@Override
+			public void connectComplete(boolean reconnect, String serverURI)
+			{
+				/* Intentionally ignored */
+			}
+			@Override
+			public void authPacketArrived(int reasonCode, MqttProperties props)
+			{
+				/* Intentionally ignored */
+			}
+		});
+	}
+
+	@Override
+	public void connect(String willTopic,byte will[],String username,String password) throws MqttException
+	{
+		MqttConnectionOptions copts=new MqttConnectionOptions();
+		copts.setWill(willTopic,new org.eclipse.paho.mqttv5.common.MqttMessage(will,2,true,new MqttProperties()));
+		copts.setCleanStart(true);
+		if(username!=null)
+		{
+			copts.setUserName(username);
+			copts.setPassword(password.getBytes(StandardCharsets.UTF_8));
+		}
+		try
+		{
+			mqttc.connect(copts).waitForCompletion();
+		}
+		catch(org.eclipse.paho.mqttv5.common.MqttException e)
+		{
+			throw wrap(e);
+		}
+	}
+
+	@Override
+	public void subscribe(String topicFilter,int qos) throws MqttException
+	{
+		try
+		{
+			mqttc.subscribe(topicFilter,qos).waitForCompletion();
+		}
+		catch(org.eclipse.paho.mqttv5.common.MqttException e)
+		{
+			throw wrap(e);
+		}
+	}
+
+	@Override
+	public void publishAndWait(String topic,byte payload[],int qos,boolean retained) throws MqttException
+	{
+		try
+		{
+			mqttc.publish(topic,payload,qos,retained).waitForCompletion();
+		}
+		catch(org.eclipse.paho.mqttv5.common.MqttException e)
+		{
+			throw wrap(e);
+		}
+	}
+
+	@Override
+	public void publish(final String topic,MqttMessage msg,final Completion completion) throws MqttException
+	{
+		MqttProperties props=new MqttProperties();
+		if(msg instanceof MQTTPropertyMessage)
+		{
+			MQTTPropertyMessage pm=(MQTTPropertyMessage)msg;
+			if(pm.userProperties.length!=0)
+			{
+				List<UserProperty> ups=new ArrayList<>(pm.userProperties.length/2);
+				for(int ix=0;ix<pm.userProperties.length;ix+=2)
+					ups.add(new UserProperty(pm.userProperties[ix],pm.userProperties[ix+1]));
+				props.setUserProperties(ups);
+			}
+			if(pm.expires!=0)
+			{
+				// Round up, so the message doesn't expire early
+				long remaining=(pm.expires-System.currentTimeMillis()+999)/1000;
+				props.setMessageExpiryInterval(Long.valueOf(Math.max(remaining,1)));
+			}
+		}
+		try
+		{
+			mqttc.publish(topic,new org.eclipse.paho.mqttv5.common.MqttMessage(msg.getPayload(),msg.getQos(),msg.isRetained(),props),null,new MqttActionListener(){
+				@Override
+				public void onSuccess(IMqttToken token)
+				{
+					completion.completed(topic,null);
+				}
+
+				@Override
+				public void onFailure(IMqttToken token,Throwable t)
+				{
+					completion.completed(topic,t);
+				}
+			});
+		}
+		catch(org.eclipse.paho.mqttv5.common.MqttException e)
+		{
+			throw wrap(e);
+		}
+	}
+}
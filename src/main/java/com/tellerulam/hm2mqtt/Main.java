@@ -14,7 +14,7 @@ import java.util.regex.Pattern;
 
 public class Main
 {
-	static final Timer t=new Timer(true);
+	public static final Timer t=new Timer(true);
 
 	private static String getVersion()
 	{
@@ -0,0 +1,142 @@
+/*
+ * Paramset descriptions shared by all channels of the same type
+ *
+ * Identical channels (same interface, device type, channel index, channel type
+ * and firmware version) have identical paramset descriptions. They are fetched
+ * once, and all channels then share one unmodifiable map. Concurrent requests
+ * for the same description wait for the one fetch in flight. As the maps are
+ * shared, the device cache file also stores each description only once.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import com.tellerulam.hm2mqtt.binary.HMXRDictionary;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+public class ParamsetDescriptionCache
+{
+	private static final Map<String,CompletableFuture<Map<String,DatapointInfo>>> descriptions=new ConcurrentHashMap<>();
+
+	private static final AtomicLong hits=new AtomicLong();
+	private static final AtomicLong misses=new AtomicLong();
+
+	private ParamsetDescriptionCache()
+	{
+		/* Static only */
+	}
+
+	/*
+	 * Builds the type key from a newDevices device description. Returns null
+	 * if the description lacks the type information.
+	 */
+	public static String typeKey(String ifid, Map<String,Object> dev)
+	{
+		Object type=dev.get("TYPE");
+		Object version=dev.get("VERSION");
+		if(!(type instanceof String) || version==null)
+			return null;
+		StringBuilder key=new StringBuilder(ifid).append('/');
+		Object parentType=dev.get("PARENT_TYPE");
+		if(parentType instanceof String && ((String)parentType).length()!=0)
+		{
+			key.append(parentType).append(':');
+			Object index=dev.get("INDEX");
+			key.append(index!=null?index:"?").append(':');
+		}
+		return key.append(type).append('@').append(version).toString();
+	}
+
+	/*
+	 * Returns the shared description for the given type key and paramset,
+	 * calling the loader only if it isn't known yet. Failed loads are not cached.
+	 */
+	public static CompletableFuture<Map<String,DatapointInfo>> get(String typeKey, String which, Supplier<CompletableFuture<Map<String,DatapointInfo>>> loader)
+	{
+		if(typeKey==null)
+			return loader.get().thenApply(ParamsetDescriptionCache::seal);
+
+		final String key=typeKey+"/"+which;
+		CompletableFuture<Map<String,DatapointInfo>> f=descriptions.get(key);
+		if(f!=null)
+		{
+			hits.incrementAndGet();
+			return f;
+		}
+		CompletableFuture<Map<String,DatapointInfo>> nf=new CompletableFuture<>();
+		f=descriptions.putIfAbsent(key,nf);
+		if(f!=null)
+		{
+			hits.incrementAndGet();
+			return f;
+		}
+		misses.incrementAndGet();
+		CompletableFuture<Map<String,DatapointInfo>> load;
+		try
+		{
+			load=loader.get();
+		}
+		catch(RuntimeException e)
+		{
+			load=new CompletableFuture<>();
+			load.completeExceptionally(e);
+		}
+		load.whenComplete((m,t)->{
+			if(t!=null)
+			{
+				descriptions.remove(key,nf);
+				nf.completeExceptionally(t);
+			}
+			else
+				nf.complete(seal(m));
+		});
+		return nf;
+	}
+
+	/*
+	 * Registers a description read from the device cache file, and returns the
+	 * canonical instance to use instead
+	 */
+	public static Map<String,DatapointInfo> share(String typeKey, String which, Map<String,DatapointInfo> m)
+	{
+		if(m==null)
+			return null;
+		if(typeKey==null)
+			return seal(m);
+		CompletableFuture<Map<String,DatapointInfo>> f=descriptions.computeIfAbsent(
+			typeKey+"/"+which,
+			k->CompletableFuture.completedFuture(seal(m))
+		);
+		Map<String,DatapointInfo> shared=f.getNow(null);
+		return shared!=null?shared:seal(m);
+	}
+
+	/*
+	 * Interns the datapoint names and makes the map unmodifiable
+	 */
+	private static Map<String,DatapointInfo> seal(Map<String,DatapointInfo> m)
+	{
+		Map<String,DatapointInfo> res=new HashMap<>();
+		for(Map.Entry<String,DatapointInfo> me:m.entrySet())
+			res.put(HMXRDictionary.intern(me.getKey()),me.getValue());
+		return Collections.unmodifiableMap(res);
+	}
+
+	public static int getSize()
+	{
+		return descriptions.size();
+	}
+
+	public static long getHits()
+	{
+		return hits.get();
+	}
+
+	public static long getMisses()
+	{
+		return misses.get();
+	}
+}
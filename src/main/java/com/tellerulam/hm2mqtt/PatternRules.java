@@ -0,0 +1,99 @@
+/*
+ * A list of "regex=value" rules, separated by ';', read from a system property
+ *
+ * Rules are matched in order against a key, typically the status topic without
+ * prefix ("<name or address>/<datapoint>"), and the first match wins. Results are
+ * cached per key, as the set of topics is small and fixed.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.regex.*;
+
+public final class PatternRules<T>
+{
+	private static final Logger L=Logger.getLogger(PatternRules.class.getName());
+
+	private static final int maxCachedKeys=10000;
+
+	private final List<Pattern> patterns=new ArrayList<>();
+	private final List<T> values=new ArrayList<>();
+	private final T defaultValue;
+	private final Map<String,Optional<T>> cache=new ConcurrentHashMap<>();
+
+	private PatternRules(T defaultValue)
+	{
+		this.defaultValue=defaultValue;
+	}
+
+	/*
+	 * Parses the rules in property "hm2mqtt."+name. Invalid rules are logged and skipped.
+	 */
+	public static <T> PatternRules<T> fromProperty(String name, Function<String,T> parser, T defaultValue)
+	{
+		PatternRules<T> rules=new PatternRules<>(defaultValue);
+		String spec=System.getProperty("hm2mqtt."+name);
+		if(spec==null)
+			return rules;
+		for(String rule:spec.split(";"))
+		{
+			rule=rule.trim();
+			if(rule.isEmpty())
+				continue;
+			int eqIx=rule.indexOf('=');
+			if(eqIx<0)
+			{
+				L.warning("Ignoring rule \""+rule+"\" in "+name+": no '='");
+				continue;
+			}
+			try
+			{
+				Pattern p=Pattern.compile(rule.substring(0,eqIx));
+				T value=parser.apply(rule.substring(eqIx+1).trim());
+				rules.patterns.add(p);
+				rules.values.add(value);
+			}
+			catch(RuntimeException e)
+			{
+				L.warning("Ignoring rule \""+rule+"\" in "+name+": "+e.getMessage());
+			}
+		}
+		L.info("Using "+rules.patterns.size()+" rules for "+name);
+		return rules;
+	}
+
+	public boolean isEmpty()
+	{
+		return patterns.isEmpty();
+	}
+
+	/*
+	 * Returns the value of the first matching rule, or the default value
+	 */
+	public T lookup(String key)
+	{
+		if(patterns.isEmpty())
+			return defaultValue;
+		Optional<T> v=cache.get(key);
+		if(v==null)
+		{
+			v=Optional.ofNullable(match(key));
+			if(cache.size()>=maxCachedKeys)
+				cache.clear();
+			cache.put(key,v);
+		}
+		return v.orElse(defaultValue);
+	}
+
+	private T match(String key)
+	{
+		for(int ix=0;ix<patterns.size();ix++)
+			if(patterns.get(ix).matcher(key).matches())
+				return values.get(ix);
+		return null;
+	}
+}
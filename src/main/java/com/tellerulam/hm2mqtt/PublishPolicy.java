@@ -0,0 +1,101 @@
+/*
+ * Decides whether an incoming value is published
+ *
+ * Configured per status topic with the mqtt.publishPolicy rules, e.g.
+ *
+ *   .+/(TEMPERATURE|HUMIDITY)=change,deadband=0.2,heartbeat=900;.+=change,heartbeat=3600
+ *
+ * "change" suppresses values equal to the last published one. For FLOAT
+ * datapoints, "deadband" additionally suppresses values which differ by less
+ * than the given amount. "heartbeat" republishes a suppressed value anyway once
+ * the given number of seconds has passed since the last publish. Both imply
+ * "change"; combined with an explicit "always", they are ignored.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+public final class PublishPolicy
+{
+	private static final Logger L=Logger.getLogger(PublishPolicy.class.getName());
+
+	public static final PublishPolicy ALWAYS=new PublishPolicy(false,0,0);
+
+	private static final AtomicLong suppressed=new AtomicLong();
+
+	private static final PatternRules<PublishPolicy> rules=PatternRules.fromProperty("mqtt.publishPolicy",PublishPolicy::parse,ALWAYS);
+
+	final boolean changeOnly;
+	final double deadband;
+	final long heartbeat;
+
+	private PublishPolicy(boolean changeOnly, double deadband, long heartbeat)
+	{
+		this.changeOnly=changeOnly;
+		this.deadband=deadband;
+		this.heartbeat=heartbeat;
+	}
+
+	public static PublishPolicy forTopic(String topic)
+	{
+		return rules.lookup(topic);
+	}
+
+	public static long getSuppressed()
+	{
+		return suppressed.get();
+	}
+
+	static PublishPolicy parse(String spec)
+	{
+		boolean changeOnly=false;
+		boolean always=false;
+		double deadband=0;
+		long heartbeat=0;
+		for(String opt:spec.split(","))
+		{
+			opt=opt.trim();
+			if("change".equals(opt))
+				changeOnly=true;
+			else if("always".equals(opt))
+				always=true;
+			else if(opt.startsWith("deadband="))
+				deadband=Double.parseDouble(opt.substring(9));
+			else if(opt.startsWith("heartbeat="))
+				heartbeat=Long.parseLong(opt.substring(10))*1000;
+			else
+				throw new IllegalArgumentException("Unknown publish policy option "+opt);
+		}
+		if(always)
+		{
+			if(changeOnly || deadband!=0 || heartbeat!=0)
+				L.warning("Publish policy \""+spec+"\" combines \"always\" with change detection options, which are ignored");
+			return ALWAYS;
+		}
+		// Deadband and heartbeat only make sense relative to the last published value
+		if(deadband>0 || heartbeat>0)
+			changeOnly=true;
+		return new PublishPolicy(changeOnly,deadband,heartbeat);
+	}
+
+	void countSuppressed()
+	{
+		suppressed.incrementAndGet();
+	}
+
+	/*
+	 * Called with the state locked
+	 */
+	boolean shouldPublish(DatapointState s, Object val, long ts, boolean isFloat)
+	{
+		if(!changeOnly || s.lastPublishedValue==null)
+			return true;
+		if(heartbeat>0 && ts-s.lastPublishedTime>=heartbeat)
+			return true;
+		if(isFloat && deadband>0 && val instanceof Number && s.lastPublishedValue instanceof Number)
+			return Math.abs(((Number)val).doubleValue()-((Number)s.lastPublishedValue).doubleValue())>=deadband;
+		return !val.equals(s.lastPublishedValue);
+	}
+}
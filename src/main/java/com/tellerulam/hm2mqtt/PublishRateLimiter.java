@@ -0,0 +1,95 @@
+/*
+ * Limits how often a status topic is published
+ *
+ * The minimum interval per topic is configured with the mqtt.rateLimit rules.
+ * The first value after a quiet period is published right away. Values arriving
+ * within the interval replace each other, and the latest one is published when
+ * the interval expires, so the final state always gets through.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+final class PublishRateLimiter
+{
+	private static final PatternRules<Long> rules=PatternRules.fromProperty("mqtt.rateLimit",Long::valueOf,Long.valueOf(0));
+
+	/*
+	 * Publishes a value. Trailing publishes run on the shared timer thread,
+	 * which must not wait for queue space, and get mayBlock=false.
+	 */
+	interface Emitter
+	{
+		void emit(boolean mayBlock);
+	}
+
+	private static final class Slot
+	{
+		long lastEmit;
+		Emitter pending;
+	}
+
+	private final Map<String,Slot> slots=new ConcurrentHashMap<>();
+	private final AtomicLong limited=new AtomicLong();
+
+	/*
+	 * Runs emit now, or later if the topic has been published too recently
+	 */
+	void submit(String topic, Emitter emit)
+	{
+		long interval=rules.lookup(topic).longValue();
+		if(interval<=0)
+		{
+			emit.emit(true);
+			return;
+		}
+		Slot s=slots.computeIfAbsent(topic,k->new Slot());
+		long now=System.currentTimeMillis();
+		synchronized(s)
+		{
+			if(s.pending!=null)
+			{
+				// Trailing publish is already scheduled, just replace the value
+				s.pending=emit;
+				limited.incrementAndGet();
+				return;
+			}
+			if(now-s.lastEmit<interval)
+			{
+				s.pending=emit;
+				limited.incrementAndGet();
+				Main.t.schedule(new TimerTask(){
+					@Override
+					public void run()
+					{
+						emitPending(s);
+					}
+				},s.lastEmit+interval-now);
+				return;
+			}
+			s.lastEmit=now;
+		}
+		emit.emit(true);
+	}
+
+	private static void emitPending(Slot s)
+	{
+		Emitter emit;
+		synchronized(s)
+		{
+			emit=s.pending;
+			s.pending=null;
+			s.lastEmit=System.currentTimeMillis();
+		}
+		if(emit!=null)
+			emit.emit(false);
+	}
+
+	long getLimited()
+	{
+		return limited.get();
+	}
+}
@@ -0,0 +1,23 @@
+/*
+ * Just the value, formatted as in the JSON "val" field but without quotes
+ * around strings. Set payloads are taken as the value itself.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.nio.charset.*;
+
+final class RawStatusCodec implements StatusCodec
+{
+	@Override
+	public byte[] encode(Object val, long ts, long lc, String address, String getID, String unit, String enumValue)
+	{
+		return StatusPayloadWriter.get().writeRaw(val);
+	}
+
+	@Override
+	public String decodeSet(byte payload[])
+	{
+		return new String(payload,StandardCharsets.UTF_8);
+	}
+}
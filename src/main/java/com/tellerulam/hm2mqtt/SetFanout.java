@@ -0,0 +1,217 @@
+/*
+ * Sets a datapoint on many devices with one message
+ *
+ * The name part of a set topic may be a glob pattern over device names
+ * ("Shutter *") or "@" followed by a group configured with hm.setGroups.
+ * The writes run concurrently, with at most hm.setFanoutParallelism of them
+ * in flight per interface. Once all have completed, one aggregated result is
+ * published to result/set.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+import java.util.regex.*;
+
+import com.eclipsesource.json.*;
+
+final class SetFanout
+{
+	private static final Logger L=Logger.getLogger(SetFanout.class.getName());
+
+	private static final int parallelism=Math.max(Integer.getInteger("hm2mqtt.hm.setFanoutParallelism",8).intValue(),1);
+	private static final Map<String,String> groups=parseGroups(System.getProperty("hm2mqtt.hm.setGroups"));
+
+	private SetFanout()
+	{
+		/* Static only */
+	}
+
+	/*
+	 * Groups are given as "group=regex;group=regex;..."
+	 */
+	private static Map<String,String> parseGroups(String spec)
+	{
+		Map<String,String> res=new HashMap<>();
+		if(spec==null)
+			return res;
+		for(String g:spec.split(";"))
+		{
+			int eqIx=g.indexOf('=');
+			if(eqIx<=0)
+			{
+				if(!g.trim().isEmpty())
+					L.warning("Ignoring invalid group definition \""+g+"\" in hm.setGroups");
+				continue;
+			}
+			res.put(g.substring(0,eqIx).trim(),g.substring(eqIx+1).trim());
+		}
+		return res;
+	}
+
+	static boolean isFanout(String target)
+	{
+		return target.startsWith("@") || target.indexOf('*')>=0 || target.indexOf('?')>=0;
+	}
+
+	/*
+	 * Returns the regular expression for a group reference or a glob pattern,
+	 * or null if the group is unknown
+	 */
+	static String toRegex(String target)
+	{
+		if(target.startsWith("@"))
+			return groups.get(target.substring(1));
+		StringBuilder re=new StringBuilder();
+		int litStart=0;
+		for(int ix=0;ix<target.length();ix++)
+		{
+			char ch=target.charAt(ix);
+			if(ch=='*'||ch=='?')
+			{
+				if(ix>litStart)
+					re.append(Pattern.quote(target.substring(litStart,ix)));
+				re.append(ch=='*'?".*":".");
+				litStart=ix+1;
+			}
+		}
+		if(litStart<target.length())
+			re.append(Pattern.quote(target.substring(litStart)));
+		return re.toString();
+	}
+
+	private static final class Target
+	{
+		final String name;
+		final DeviceInfo di;
+
+		Target(String name,DeviceInfo di)
+		{
+			this.name=name;
+			this.di=di;
+		}
+	}
+
+	static void set(final String target,final String datapoint,final String value)
+	{
+		String regex=toRegex(target);
+		if(regex==null)
+		{
+			L.warning("Got set to unknown group "+target+", ignoring");
+			return;
+		}
+		Map<String,Deque<Target>> byInterface=new HashMap<>();
+		int total=0;
+		for(Map.Entry<String,DeviceInfo> de:DeviceInfo.matchByPattern(regex))
+		{
+			Deque<Target> q=byInterface.get(de.getValue().ifid);
+			if(q==null)
+			{
+				q=new ArrayDeque<>();
+				byInterface.put(de.getValue().ifid,q);
+			}
+			q.add(new Target(de.getKey(),de.getValue()));
+			total++;
+		}
+		L.info("Setting "+datapoint+"="+value+" on "+total+" devices matching "+target);
+
+		final Map<String,String> failures=new ConcurrentHashMap<>();
+		final AtomicInteger remaining=new AtomicInteger(total);
+		final int count=total;
+		final Runnable finish=new Runnable(){
+			@Override
+			public void run()
+			{
+				JsonObject res=new JsonObject();
+				res.add("target",target);
+				res.add("datapoint",datapoint);
+				res.add("value",value);
+				res.add("total",count);
+				res.add("ok",count-failures.size());
+				JsonObject failed=new JsonObject();
+				for(Map.Entry<String,String> fe:failures.entrySet())
+					failed.add(fe.getKey(),fe.getValue());
+				res.add("failed",failed);
+				MQTTHandler.publishSetResult(res.toString());
+			}
+		};
+		if(total==0)
+		{
+			finish.run();
+			return;
+		}
+		for(Deque<Target> q:byInterface.values())
+			for(int ix=0;ix<parallelism;ix++)
+				next(q,datapoint,value,failures,remaining,finish);
+	}
+
+	/*
+	 * Starts the next write of the queue. Writes which complete right away are
+	 * handled in the loop rather than by recursing from whenComplete(), which
+	 * would nest one call per device.
+	 */
+	private static void next(final Deque<Target> q,final String datapoint,final String value,
+		final Map<String,String> failures,final AtomicInteger remaining,final Runnable finish)
+	{
+		for(;;)
+		{
+			final Target t;
+			synchronized(q)
+			{
+				t=q.poll();
+			}
+			if(t==null)
+				return;
+			CompletableFuture<Void> f;
+			try
+			{
+				f=HM.setValue(t.di,datapoint,value);
+			}
+			catch(RuntimeException e)
+			{
+				f=new CompletableFuture<>();
+				f.completeExceptionally(e);
+			}
+			if(!f.isDone())
+			{
+				f.whenComplete((r,ex)->{
+					if(complete(t,ex,failures,remaining,finish))
+						next(q,datapoint,value,failures,remaining,finish);
+				});
+				return;
+			}
+			Throwable ex=null;
+			try
+			{
+				f.join();
+			}
+			catch(CompletionException|CancellationException e)
+			{
+				ex=e;
+			}
+			if(!complete(t,ex,failures,remaining,finish))
+				return;
+		}
+	}
+
+	/*
+	 * Records the outcome of one write. Returns false once all are done.
+	 */
+	private static boolean complete(Target t,Throwable ex,Map<String,String> failures,AtomicInteger remaining,Runnable finish)
+	{
+		if(ex!=null)
+		{
+			Throwable cause=ex instanceof CompletionException && ex.getCause()!=null?ex.getCause():ex;
+			failures.put(t.name,String.valueOf(cause.getMessage()));
+		}
+		if(remaining.decrementAndGet()==0)
+		{
+			finish.run();
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Last-write-wins queue for outgoing set requests
+ *
+ * At most one set per (device, datapoint) is in flight. Values arriving in the
+ * meantime replace each other, and only the newest one is sent once the
+ * in-flight set has completed. Dimmer sliders and the like thus no longer queue
+ * up more writes than the radio can carry. ACTION datapoints are never
+ * coalesced, as every single press counts.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class SetValueCoalescer
+{
+	public interface Sender
+	{
+		CompletableFuture<Void> send(DeviceInfo di, String datapoint, String value);
+	}
+
+	private static final class Slot
+	{
+		String pendingValue;
+		List<CompletableFuture<Void>> pendingWaiters=new ArrayList<>();
+	}
+
+	private final Sender sender;
+	private final Map<String,Slot> slots=new HashMap<>();
+
+	private final AtomicLong submitted=new AtomicLong();
+	private final AtomicLong coalesced=new AtomicLong();
+	private final AtomicLong sent=new AtomicLong();
+
+	public SetValueCoalescer(Sender sender)
+	{
+		this.sender=sender;
+	}
+
+	/*
+	 * The returned future completes once this value, or a newer value which
+	 * replaced it, has been written
+	 */
+	public CompletableFuture<Void> submit(DeviceInfo di, String datapoint, String value)
+	{
+		submitted.incrementAndGet();
+		DatapointInfo dpi=di.getValueDatapointInfo(datapoint);
+		if(dpi!=null && dpi.isAction())
+			return send(di,datapoint,value);
+
+		String key=di.address+"/"+datapoint;
+		synchronized(slots)
+		{
+			Slot s=slots.get(key);
+			if(s!=null)
+			{
+				if(s.pendingValue!=null)
+					coalesced.incrementAndGet();
+				s.pendingValue=value;
+				CompletableFuture<Void> waiter=new CompletableFuture<>();
+				s.pendingWaiters.add(waiter);
+				return waiter;
+			}
+			slots.put(key,new Slot());
+		}
+		return sendAndDrain(di,datapoint,value,key);
+	}
+
+	private CompletableFuture<Void> send(DeviceInfo di, String datapoint, String value)
+	{
+		sent.incrementAndGet();
+		return sender.send(di,datapoint,value);
+	}
+
+	private CompletableFuture<Void> sendAndDrain(final DeviceInfo di, final String datapoint, String value, final String key)
+	{
+		CompletableFuture<Void> f;
+		try
+		{
+			f=send(di,datapoint,value);
+		}
+		catch(RuntimeException e)
+		{
+			f=new CompletableFuture<>();
+			f.completeExceptionally(e);
+		}
+		f.whenComplete((r,t)->{
+			String next;
+			List<CompletableFuture<Void>> waiters;
+			synchronized(slots)
+			{
+				Slot s=slots.get(key);
+				next=s.pendingValue;
+				waiters=s.pendingWaiters;
+				s.pendingValue=null;
+				s.pendingWaiters=new ArrayList<>();
+				if(next==null)
+					slots.remove(key);
+			}
+			if(next!=null)
+			{
+				CompletableFuture<Void> nf=sendAndDrain(di,datapoint,next,key);
+				for(CompletableFuture<Void> w:waiters)
+					propagate(nf,w);
+			}
+		});
+		return f;
+	}
+
+	private static void propagate(CompletableFuture<Void> from, final CompletableFuture<Void> to)
+	{
+		from.whenComplete((r,t)->{
+			if(t!=null)
+				to.completeExceptionally(t);
+			else
+				to.complete(r);
+		});
+	}
+
+	public long getSubmitted()
+	{
+		return submitted.get();
+	}
+
+	public long getCoalesced()
+	{
+		return coalesced.get();
+	}
+
+	public long getSent()
+	{
+		return sent.get();
+	}
+
+	public int getInFlight()
+	{
+		synchronized(slots)
+		{
+			return slots.size();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * The current state of every datapoint we've seen a value for, keyed
+ * by device address and datapoint name
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public final class StateStore
+{
+	private static final Map<String,Map<String,DatapointState>> states=new ConcurrentHashMap<>();
+
+	private StateStore()
+	{
+		/* Static only */
+	}
+
+	public static DatapointState get(String address, String datapoint)
+	{
+		Map<String,DatapointState> dev=states.get(address);
+		if(dev==null)
+			dev=states.computeIfAbsent(address,k->new ConcurrentHashMap<>());
+		DatapointState s=dev.get(datapoint);
+		if(s==null)
+			s=dev.computeIfAbsent(datapoint,k->new DatapointState());
+		return s;
+	}
+
+	/*
+	 * Returns the states of a device, or an empty map if there are none
+	 */
+	public static Map<String,DatapointState> getDevice(String address)
+	{
+		Map<String,DatapointState> dev=states.get(address);
+		if(dev==null)
+			return Collections.emptyMap();
+		return Collections.unmodifiableMap(dev);
+	}
+
+	static void removeDevice(String address)
+	{
+		states.remove(address);
+	}
+
+	public static int size()
+	{
+		int cnt=0;
+		for(Map<String,DatapointState> dev:states.values())
+			cnt+=dev.size();
+		return cnt;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Collects status updates into batches, per device or per interface
+ *
+ * With mqtt.batch set, the first status update for a device (or interface)
+ * opens a batch, and everything arriving for it within mqtt.batchWindow ms is
+ * published as one JSON array to batch/<device name or interface id>. Each
+ * element is the JSON status payload with an added "topic" field holding the
+ * status topic without prefix. A batch reaching mqtt.batchMaxSize entries is
+ * published right away. Entries are kept in arrival order, so a batch may
+ * contain several values for the same topic.
+ *
+ * Unless mqtt.batchPerDatapoint is false, the regular status topics are
+ * published as well.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+final class StatusBatcher
+{
+	private static final Logger L=Logger.getLogger(StatusBatcher.class.getName());
+
+	enum Mode
+	{
+		OFF,
+		DEVICE,
+		INTERFACE
+	}
+
+	static final Mode mode=Mode.valueOf(System.getProperty("hm2mqtt.mqtt.batch","off").toUpperCase());
+	static final boolean perDatapoint=Boolean.parseBoolean(System.getProperty("hm2mqtt.mqtt.batchPerDatapoint","true"));
+	private static final long window=Math.max(Long.getLong("hm2mqtt.mqtt.batchWindow",100).longValue(),1);
+	private static final int maxSize=Math.max(Integer.getInteger("hm2mqtt.mqtt.batchMaxSize",500).intValue(),1);
+
+	static
+	{
+		if(mode!=Mode.OFF)
+			L.info("Batching status updates per "+mode.name().toLowerCase()+" within "+window+"ms, at most "+maxSize+" per batch"
+				+(perDatapoint?", also publishing per datapoint":""));
+	}
+
+	private static final class Batch
+	{
+		final String key;
+		final List<String> names=new ArrayList<>();
+		final List<byte[]> payloads=new ArrayList<>();
+		boolean closed;
+
+		Batch(String key)
+		{
+			this.key=key;
+		}
+	}
+
+	private static final Map<String,Batch> open=new ConcurrentHashMap<>();
+	private static final AtomicLong batches=new AtomicLong();
+	private static final AtomicLong entries=new AtomicLong();
+
+	private StatusBatcher()
+	{
+		/* Static only */
+	}
+
+	static boolean isEnabled()
+	{
+		return mode!=Mode.OFF;
+	}
+
+	/*
+	 * Adds a status to the batch of its device or interface. json is the
+	 * status payload as written by the JSON codec.
+	 */
+	static void add(DeviceInfo di, StatusTemplate tpl, byte json[])
+	{
+		String key=mode==Mode.DEVICE?tpl.deviceName:di.ifid;
+		for(;;)
+		{
+			Batch b=open.get(key);
+			if(b==null)
+			{
+				Batch nb=new Batch(key);
+				b=open.putIfAbsent(key,nb);
+				if(b==null)
+				{
+					b=nb;
+					schedule(nb);
+				}
+			}
+			Batch full=null;
+			synchronized(b)
+			{
+				// Lost a race with a flush; open a new batch
+				if(b.closed)
+					continue;
+				b.names.add(tpl.name);
+				b.payloads.add(json);
+				if(b.names.size()>=maxSize)
+				{
+					b.closed=true;
+					open.remove(key,b);
+					full=b;
+				}
+			}
+			if(full!=null)
+				publish(full,true);
+			return;
+		}
+	}
+
+	private static void schedule(final Batch b)
+	{
+		Main.t.schedule(new TimerTask(){
+			@Override
+			public void run()
+			{
+				synchronized(b)
+				{
+					if(b.closed)
+						return;
+					b.closed=true;
+				}
+				open.remove(b.key,b);
+				// Don't stall the shared timer thread on a full queue
+				publish(b,false);
+			}
+		},window);
+	}
+
+	private static void publish(Batch b,boolean mayBlock)
+	{
+		batches.incrementAndGet();
+		entries.addAndGet(b.names.size());
+		MQTTHandler.publishBatch(b.key,StatusPayloadWriter.get().writeBatch(b.names,b.payloads),mayBlock);
+	}
+
+	static long getBatches()
+	{
+		return batches.get();
+	}
+
+	static long getEntries()
+	{
+		return entries.get();
+	}
+}
@@ -0,0 +1,25 @@
+/*
+ * Encodes status payloads and decodes set payloads
+ *
+ * Which codec is used for a topic is configured with the mqtt.codec rules;
+ * see StatusCodecs. Besides the built-in codecs, a rule may name a class
+ * implementing this interface, which needs a public no-arg constructor.
+ * Implementations are shared by all threads.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+public interface StatusCodec
+{
+	/*
+	 * Encodes a status. address and unit are null if they are sent as MQTT v5
+	 * user properties instead; getID, unit and enumValue are null if not applicable.
+	 */
+	byte[] encode(Object val, long ts, long lc, String address, String getID, String unit, String enumValue);
+
+	/*
+	 * Decodes the payload of a set message into a value as accepted by
+	 * DatapointInfo.convertedValue(), i.e. its string representation
+	 */
+	String decodeSet(byte payload[]);
+}
@@ -0,0 +1,63 @@
+/*
+ * The status payload codec per topic, configured with the mqtt.codec rules, e.g.
+ *
+ *   Display .+=raw;.+/(TEMPERATURE|HUMIDITY)=cbor
+ *
+ * Rules are matched against the status topic without prefix. Set messages
+ * are decoded with the codec of the same "name/DATAPOINT", so a client can
+ * send values in the format it receives them. Built-in codecs are "json" (the
+ * default), "raw" and "cbor"; anything else is taken as a StatusCodec class name.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+public final class StatusCodecs
+{
+	public static final StatusCodec JSON=new JSONStatusCodec();
+	public static final StatusCodec RAW=new RawStatusCodec();
+	public static final StatusCodec CBOR=new CBORStatusCodec();
+
+	private static final PatternRules<StatusCodec> rules=PatternRules.fromProperty("mqtt.codec",StatusCodecs::byName,JSON);
+
+	private StatusCodecs()
+	{
+		/* Static only */
+	}
+
+	static StatusCodec byName(String name)
+	{
+		switch(name)
+		{
+			case "json":
+				return JSON;
+			case "raw":
+				return RAW;
+			case "cbor":
+				return CBOR;
+			default:
+				try
+				{
+					return Class.forName(name).asSubclass(StatusCodec.class).getDeclaredConstructor().newInstance();
+				}
+				catch(ReflectiveOperationException|ClassCastException e)
+				{
+					throw new IllegalArgumentException("Unknown codec "+name,e);
+				}
+		}
+	}
+
+	public static StatusCodec forTopic(String topic)
+	{
+		return rules.lookup(topic);
+	}
+
+	/*
+	 * Avoids building the topic when there are no rules
+	 */
+	public static StatusCodec forTopic(String name, String datapoint)
+	{
+		if(rules.isEmpty())
+			return JSON;
+		return rules.lookup(name+"/"+datapoint);
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * Writes the JSON status payload straight into a reusable UTF-8 byte buffer
+ *
+ * The output is byte-identical to what building a minimal-json JsonObject
+ * and encoding its toString() produced: fields in the order val, ts, lc,
+ * hm_addr, hm_getid, hm_unit, hm_enum; ts and lc as strings; BigDecimal
+ * values as JSON numbers formatted like JsonValue.valueOf(double); and
+ * minimal-json's escaping rules for strings. The only allocation per
+ * payload is the final, exactly sized byte array.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import java.math.*;
+import java.nio.charset.*;
+import java.util.*;
+
+final class StatusPayloadWriter
+{
+	private static final ThreadLocal<StatusPayloadWriter> writers=new ThreadLocal<StatusPayloadWriter>(){
+		@Override
+		protected StatusPayloadWriter initialValue()
+		{
+			return new StatusPayloadWriter();
+		}
+	};
+
+	private static final byte HEX_DIGITS[]="0123456789abcdef".getBytes();
+
+	private byte buf[]=new byte[256];
+	private int len;
+
+	static StatusPayloadWriter get()
+	{
+		return writers.get();
+	}
+
+	byte[] write(Object val, long ts, long lc, String address, String getID, String unit, String enumValue, boolean hasEnum)
+	{
+		len=0;
+		ascii("{\"val\":");
+		value(val);
+		ascii(",\"ts\":\"");
+		number(ts);
+		ascii("\",\"lc\":\"");
+		number(lc);
+		ascii("\",\"hm_addr\":");
+		string(address);
+		if(getID!=null)
+		{
+			ascii(",\"hm_getid\":");
+			string(getID);
+		}
+		if(unit!=null && unit.length()!=0)
+		{
+			ascii(",\"hm_unit\":");
+			string(unit);
+		}
+		if(hasEnum)
+		{
+			ascii(",\"hm_enum\":");
+			string(enumValue);
+		}
+		put('}');
+		return Arrays.copyOf(buf,len);
+	}
+
+	/*
+	 * Payload from a StatusTemplate; enumField is null for non-ENUM datapoints
+	 */
+	byte[] write(Object val, long ts, long lc, byte fields[], byte enumField[])
+	{
+		len=0;
+		ascii("{\"val\":");
+		value(val);
+		ascii(",\"ts\":\"");
+		number(ts);
+		ascii("\",\"lc\":\"");
+		number(lc);
+		put('"');
+		bytes(fields);
+		if(enumField!=null)
+			bytes(enumField);
+		put('}');
+		return Arrays.copyOf(buf,len);
+	}
+
+	/*
+	 * The hm_addr and hm_unit fields, with their leading comma
+	 */
+	byte[] staticFields(String address, String unit)
+	{
+		len=0;
+		ascii(",\"hm_addr\":");
+		string(address);
+		if(unit!=null && unit.length()!=0)
+		{
+			ascii(",\"hm_unit\":");
+			string(unit);
+		}
+		return Arrays.copyOf(buf,len);
+	}
+
+	/*
+	 * A JSON array of status payloads, each with a "topic" field prepended
+	 */
+	byte[] writeBatch(List<String> topics, List<byte[]> payloads)
+	{
+		len=0;
+		put('[');
+		for(int ix=0;ix<topics.size();ix++)
+		{
+			if(ix>0)
+				put(',');
+			ascii("{\"topic\":");
+			string(topics.get(ix));
+			put(',');
+			byte p[]=payloads.get(ix);
+			// Skip the payload's opening brace
+			ensure(p.length-1);
+			System.arraycopy(p,1,buf,len,p.length-1);
+			len+=p.length-1;
+		}
+		put(']');
+		return Arrays.copyOf(buf,len);
+	}
+
+	/*
+	 * Just the value, as in the "val" field, but with strings unquoted
+	 */
+	byte[] writeRaw(Object val)
+	{
+		if(!(val instanceof BigDecimal || val instanceof Integer || val instanceof Boolean))
+			return val.toString().getBytes(StandardCharsets.UTF_8);
+		len=0;
+		value(val);
+		return Arrays.copyOf(buf,len);
+	}
+
+	byte[] enumField(String enumValue)
+	{
+		len=0;
+		ascii(",\"hm_enum\":");
+		string(enumValue);
+		return Arrays.copyOf(buf,len);
+	}
+
+	private void bytes(byte b[])
+	{
+		ensure(b.length);
+		System.arraycopy(b,0,buf,len,b.length);
+		len+=b.length;
+	}
+
+	private void value(Object val)
+	{
+		if(val instanceof BigDecimal)
+		{
+			double d=((BigDecimal)val).doubleValue();
+			if(Double.isInfinite(d) || Double.isNaN(d))
+				throw new IllegalArgumentException("Infinite and NaN values not permitted in JSON");
+			// Like minimal-json, drop a trailing ".0"
+			String s=Double.toString(d);
+			int l=s.length();
+			if(s.endsWith(".0"))
+				l-=2;
+			for(int ix=0;ix<l;ix++)
+				put(s.charAt(ix));
+		}
+		else if(val instanceof Integer)
+			number(((Integer)val).intValue());
+		else if(val instanceof Boolean)
+			put(((Boolean)val).booleanValue()?'1':'0');
+		else
+			string(val.toString());
+	}
+
+	private void ascii(String s)
+	{
+		int l=s.length();
+		ensure(l);
+		for(int ix=0;ix<l;ix++)
+			buf[len++]=(byte)s.charAt(ix);
+	}
+
+	private void number(long v)
+	{
+		if(v==Long.MIN_VALUE)
+		{
+			ascii(Long.toString(v));
+			return;
+		}
+		ensure(20);
+		if(v<0)
+		{
+			buf[len++]='-';
+			v=-v;
+		}
+		int start=len;
+		do
+		{
+			buf[len++]=(byte)('0'+v%10);
+			v/=10;
+		}
+		while(v!=0);
+		// Digits were written least significant first
+		for(int lo=start,hi=len-1;lo<hi;lo++,hi--)
+		{
+			byte t=buf[lo];
+			buf[lo]=buf[hi];
+			buf[hi]=t;
+		}
+	}
+
+	private void string(String s)
+	{
+		if(s==null)
+		{
+			ascii("null");
+			return;
+		}
+		put('"');
+		int l=s.length();
+		for(int ix=0;ix<l;ix++)
+		{
+			char ch=s.charAt(ix);
+			switch(ch)
+			{
+				case '"':
+					ascii("\\\"");
+					break;
+				case '\\':
+					ascii("\\\\");
+					break;
+				case '\n':
+					ascii("\\n");
+					break;
+				case '\r':
+					ascii("\\r");
+					break;
+				case '\t':
+					ascii("\\t");
+					break;
+				case '\u2028':
+					ascii("\\u2028");
+					break;
+				case '\u2029':
+					ascii("\\u2029");
+					break;
+				default:
+					if(ch<0x20)
+					{
+						ascii("\\u00");
+						put(HEX_DIGITS[ch>>4]);
+						put(HEX_DIGITS[ch&0xf]);
+					}
+					else if(ch<0x80)
+						put(ch);
+					else if(ch<0x800)
+					{
+						put(0xc0|(ch>>6));
+						put(0x80|(ch&0x3f));
+					}
+					else if(Character.isSurrogate(ch))
+					{
+						if(Character.isHighSurrogate(ch) && ix+1<l && Character.isLowSurrogate(s.charAt(ix+1)))
+						{
+							int cp=Character.toCodePoint(ch,s.charAt(++ix));
+							put(0xf0|(cp>>18));
+							put(0x80|((cp>>12)&0x3f));
+							put(0x80|((cp>>6)&0x3f));
+							put(0x80|(cp&0x3f));
+						}
+						else
+							put('?'); // Malformed, like String.getBytes() does
+					}
+					else
+					{
+						put(0xe0|(ch>>12));
+						put(0x80|((ch>>6)&0x3f));
+						put(0x80|(ch&0x3f));
+					}
+			}
+		}
+		put('"');
+	}
+
+	private void put(int b)
+	{
+		ensure(1);
+		buf[len++]=(byte)b;
+	}
+
+	private void ensure(int n)
+	{
+		if(len+n>buf.length)
+			buf=Arrays.copyOf(buf,Math.max(buf.length*2,len+n));
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Everything about publishing a (device, datapoint) status which doesn't
+ * change from event to event: the topic, the static payload fields, the
+ * hm_enum field for every enum value, the payload codec and the publish policy
+ *
+ * With MQTT v5 and mqtt.userProperties, hm_addr and hm_unit are sent as
+ * user properties instead of payload fields.
+ *
+ * Templates are built on first use and dropped when the device is renamed.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+final class StatusTemplate
+{
+	final String deviceName;
+	// The status topic without prefix, i.e. "name/DATAPOINT"
+	final String name;
+	final String topic;
+	final byte fields[];
+	final byte enumFields[][];
+	private final String enumValues[];
+	// For codecs other than JSON; null when sent as user properties
+	private final String address;
+	private final String unit;
+	// Pairs of key and value, or null
+	final String userProperties[];
+	// Expiry in ms, or 0
+	final long expiry;
+	final boolean isAction;
+	final StatusCodec codec;
+	final PublishPolicy policy;
+
+	StatusTemplate(String deviceName, DeviceInfo di, DatapointInfo dpi)
+	{
+		this.deviceName=deviceName;
+		name=deviceName+"/"+dpi.name;
+		topic=MQTTHandler.statusTopic(name);
+		StatusPayloadWriter w=StatusPayloadWriter.get();
+		enumValues=dpi.type==HMValueTypes.ENUM?dpi.enumValues:null;
+		if(MQTTHandler.useUserProperties())
+		{
+			address=null;
+			unit=null;
+			fields=new byte[0];
+			if(dpi.unit!=null && dpi.unit.length()!=0)
+				userProperties=new String[]{"hm_addr",di.address,"hm_unit",dpi.unit};
+			else
+				userProperties=new String[]{"hm_addr",di.address};
+		}
+		else
+		{
+			address=di.address;
+			unit=dpi.unit;
+			fields=w.staticFields(di.address,dpi.unit);
+			userProperties=null;
+		}
+		isAction=dpi.isAction();
+		expiry=isAction?MQTTHandler.getActionExpiry():0;
+		if(dpi.type==HMValueTypes.ENUM && dpi.enumValues!=null)
+		{
+			enumFields=new byte[dpi.enumValues.length][];
+			for(int ix=0;ix<enumFields.length;ix++)
+				enumFields[ix]=w.enumField(dpi.enumValues[ix]);
+		}
+		else
+			enumFields=null;
+		codec=StatusCodecs.forTopic(name);
+		policy=PublishPolicy.forTopic(name);
+	}
+
+	byte[] encode(Object val, long ts, long lc)
+	{
+		if(codec==StatusCodecs.JSON)
+			return encodeJSON(val,ts,lc);
+		return codec.encode(val,ts,lc,address,null,unit,enumValues!=null?enumValues[(Integer)val]:null);
+	}
+
+	/*
+	 * The JSON payload regardless of the codec, as used in batches
+	 */
+	byte[] encodeJSON(Object val, long ts, long lc)
+	{
+		return StatusPayloadWriter.get().write(val,ts,lc,fields,enumFields!=null?enumFields[(Integer)val]:null);
+	}
+
+	/*
+	 * Was this template built for the given device name?
+	 */
+	boolean isFor(String deviceName)
+	{
+		return this.deviceName==deviceName || this.deviceName.equals(deviceName);
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Resolves the "<name or address>/<datapoint>" part of inbound set/get topics
+ *
+ * A trie over the '/' separated topic segments mirrors the device address and
+ * name indices of DeviceInfo, and is updated whenever those change. Device names
+ * may contain '/', which is why the trie works on segments; the last segment is
+ * always the datapoint. Known datapoints are remembered per device node as Route
+ * handles, so resolving a topic is a single walk over the topic string which
+ * neither takes a lock nor allocates.
+ *
+ * Like HMXRDictionary, readers don't lock. A reader racing with an update may
+ * miss, and then takes the slow path via DeviceInfo.
+ */
+
+package com.tellerulam.hm2mqtt;
+
+import com.tellerulam.hm2mqtt.binary.HMXRDictionary;
+
+public final class TopicRouter
+{
+	/*
+	 * A resolved (device, datapoint) binding. The device is looked up on every
+	 * call, so the handle stays valid when the device behind a name changes.
+	 */
+	public static final class Route
+	{
+		private final Node node;
+		// The name or address as used in the topic
+		public final String deviceKey;
+		public final String datapoint;
+
+		Route(Node node,String deviceKey,String datapoint)
+		{
+			this.node=node;
+			this.deviceKey=deviceKey;
+			this.datapoint=datapoint;
+		}
+
+		public DeviceInfo getDevice()
+		{
+			DeviceInfo di=node.byName;
+			return di!=null?di:node.byAddress;
+		}
+	}
+
+	static final class Node
+	{
+		final String key;
+		volatile DeviceInfo byName;
+		volatile DeviceInfo byAddress;
+		volatile SegmentMap<Node> children=SegmentMap.empty();
+		volatile SegmentMap<Route> routes=SegmentMap.empty();
+
+		Node(String key)
+		{
+			this.key=key;
+		}
+	}
+
+	/*
+	 * Immutable open addressing map from a String to a value, which can be
+	 * queried with a region of another string
+	 */
+	static final class SegmentMap<V>
+	{
+		private static final SegmentMap<Object> EMPTY=new SegmentMap<>(new String[1],new Object[1],0);
+
+		private final String keys[];
+		private final Object values[];
+		private final int size;
+
+		private SegmentMap(String keys[],Object values[],int size)
+		{
+			this.keys=keys;
+			this.values=values;
+			this.size=size;
+		}
+
+		@SuppressWarnings("unchecked")
+		static <V> SegmentMap<V> empty()
+		{
+			return (SegmentMap<V>)EMPTY;
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(String s,int start,int end)
+		{
+			if(size==0)
+				return null;
+			int len=end-start;
+			// Same as String.hashCode() of the region
+			int h=0;
+			for(int ix=start;ix<end;ix++)
+				h=31*h+s.charAt(ix);
+			int mask=keys.length-1;
+			for(int slot=h&mask;;slot=(slot+1)&mask)
+			{
+				String k=keys[slot];
+				if(k==null)
+					return null;
+				if(k.length()==len && k.hashCode()==h && k.regionMatches(0,s,start,len))
+					return (V)values[slot];
+			}
+		}
+
+		V get(String key)
+		{
+			return get(key,0,key.length());
+		}
+
+		SegmentMap<V> with(String key,V value)
+		{
+			int cap=keys.length;
+			while((size+1)*2>cap)
+				cap*=2;
+			String nk[]=new String[cap];
+			Object nv[]=new Object[cap];
+			int nsize=0;
+			for(int ix=0;ix<keys.length;ix++)
+				if(keys[ix]!=null && !keys[ix].equals(key))
+				{
+					insert(nk,nv,keys[ix],values[ix]);
+					nsize++;
+				}
+			insert(nk,nv,key,value);
+			return new SegmentMap<>(nk,nv,nsize+1);
+		}
+
+		private static void insert(String keys[],Object values[],String key,Object value)
+		{
+			int mask=keys.length-1;
+			int slot=key.hashCode()&mask;
+			while(keys[slot]!=null)
+				slot=(slot+1)&mask;
+			keys[slot]=key;
+			values[slot]=value;
+		}
+	}
+
+	private static final Node root=new Node("");
+
+	private TopicRouter()
+	{
+		/* Static only */
+	}
+
+	/*
+	 * Resolves topic[start..] to a route, or returns null if the device or the
+	 * datapoint isn't known (yet)
+	 */
+	public static Route route(String topic,int start)
+	{
+		int dpIx=topic.lastIndexOf('/');
+		if(dpIx<start)
+			return null;
+		Node n=walk(topic,start,dpIx);
+		if(n==null)
+			return null;
+		Route r=n.routes.get(topic,dpIx+1,topic.length());
+		if(r!=null)
+			return r;
+		return learnRoute(n,topic.substring(dpIx+1));
+	}
+
+	private static Node walk(String topic,int start,int end)
+	{
+		Node n=root;
+		int segStart=start;
+		for(;;)
+		{
+			int segEnd=topic.indexOf('/',segStart);
+			if(segEnd<0||segEnd>end)
+				segEnd=end;
+			n=n.children.get(topic,segStart,segEnd);
+			if(n==null)
+				return null;
+			if(segEnd==end)
+				return n;
+			segStart=segEnd+1;
+		}
+	}
+
+	/*
+	 * Only datapoints the device actually has get a route, so arbitrary inbound
+	 * topics can't grow the trie
+	 */
+	private static synchronized Route learnRoute(Node n,String datapoint)
+	{
+		DeviceInfo di=n.byName!=null?n.byName:n.byAddress;
+		if(di==null||di.getValueDatapointInfo(datapoint)==null)
+			return null;
+		// Datapoint names of known devices are in the dictionary already
+		datapoint=HMXRDictionary.intern(datapoint);
+		Route r=new Route(n,n.key,datapoint);
+		n.routes=n.routes.with(datapoint,r);
+		return r;
+	}
+
+	private static Node nodeFor(String key)
+	{
+		Node n=root;
+		int segStart=0;
+		for(;;)
+		{
+			int segEnd=key.indexOf('/',segStart);
+			if(segEnd<0)
+				segEnd=key.length();
+			String seg=key.substring(segStart,segEnd);
+			Node child=n.children.get(seg);
+			if(child==null)
+			{
+				child=new Node(key.substring(0,segEnd));
+				n.children=n.children.with(seg,child);
+			}
+			n=child;
+			if(segEnd==key.length())
+				return n;
+			segStart=segEnd+1;
+		}
+	}
+
+	static synchronized void bindName(String name,DeviceInfo di)
+	{
+		nodeFor(name).byName=di;
+	}
+
+	static synchronized void bindAddress(String address,DeviceInfo di)
+	{
+		nodeFor(address).byAddress=di;
+	}
+
+	static synchronized void unbindAddress(String address)
+	{
+		Node n=root;
+		int segStart=0;
+		for(;;)
+		{
+			int segEnd=address.indexOf('/',segStart);
+			if(segEnd<0)
+				segEnd=address.length();
+			n=n.children.get(address,segStart,segEnd);
+			if(n==null)
+				return;
+			if(segEnd==address.length())
+				break;
+			segStart=segEnd+1;
+		}
+		n.byAddress=null;
+		n.routes=SegmentMap.empty();
+	}
+}
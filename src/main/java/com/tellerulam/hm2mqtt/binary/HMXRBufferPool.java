@@ -0,0 +1,52 @@
+/*
+ * A small pool of heap ByteBuffers used to encode outgoing frames
+ */
+
+package com.tellerulam.hm2mqtt.binary;
+
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+final class HMXRBufferPool
+{
+	private static final int maxPooled=Integer.getInteger("hm2mqtt.hm.bufferPoolSize",16).intValue();
+	// Don't keep the odd huge listDevices reply around forever
+	private static final int maxRetainedCapacity=64*1024;
+	private static final int minCapacity=1024;
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> pool=new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final AtomicInteger pooled=new AtomicInteger();
+
+	private HMXRBufferPool()
+	{
+		/* Static only */
+	}
+
+	static ByteBuffer acquire(int size)
+	{
+		ByteBuffer b=pool.poll();
+		if(b!=null)
+		{
+			pooled.decrementAndGet();
+			if(b.capacity()>=size)
+			{
+				b.clear();
+				return b;
+			}
+		}
+		return ByteBuffer.allocate(Math.max(size,minCapacity));
+	}
+
+	static void release(ByteBuffer b)
+	{
+		if(b.capacity()>maxRetainedCapacity)
+			return;
+		if(pooled.incrementAndGet()>maxPooled)
+		{
+			pooled.decrementAndGet();
+			return;
+		}
+		pool.offer(b);
+	}
+}
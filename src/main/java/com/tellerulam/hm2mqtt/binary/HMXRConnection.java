@@ -7,19 +7,34 @@ package com.tellerulam.hm2mqtt.binary;
 import com.tellerulam.hm2mqtt.DatapointInfo;
 import com.tellerulam.hm2mqtt.DeviceInfo;
 import com.tellerulam.hm2mqtt.HMConnection;
+import com.tellerulam.hm2mqtt.HMEvent;
+import com.tellerulam.hm2mqtt.Main;
+import com.tellerulam.hm2mqtt.ParamsetDescriptionCache;
 import com.tellerulam.hm2mqtt.ReGaDeviceNameResolver;
 
 import java.io.IOException;
-import java.net.*;
 import java.text.ParseException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
 public class HMXRConnection extends Thread implements HMConnection {
 	private final Logger L=Logger.getLogger(getClass().getName());
 
-	Socket s;
+	private static final int poolSize=Math.max(Integer.getInteger("hm2mqtt.hm.poolSize",2).intValue(),1);
+	// 0 keeps idle connections open
+	private static final long poolIdleTimeout=Math.max(Long.getLong("hm2mqtt.hm.poolIdleTimeout",60).longValue(),0)*1000;
+
+	final HMXRConnectionPool pool;
+	private final ExecutorService requestExecutor;
+	// Discovery has connections of its own, so it can't hold up regular requests
+	private final HMXRConnectionPool discoveryPool;
+	private final ExecutorService discoveryRequestExecutor;
+
+	private static final long setBatchWindow=Long.getLong("hm2mqtt.hm.setBatchWindow",0).longValue();
+	private static final int setBatchMaxSize=Integer.getInteger("hm2mqtt.hm.setBatchMaxSize",50).intValue();
+	private final HMXRSetValueBatcher setBatcher;
 	final String host;
 	final int port;
 	final String serverurl;
@@ -27,7 +42,7 @@ public class HMXRConnection extends Thread implements HMConnection {
 
 	private final boolean cuxDkludges;
 
-	private boolean initFinished, newDevicesFinished=true, listDevicesFinished;
+	private volatile boolean initFinished, listDevicesFinished;
 
 	public HMXRConnection(String host, int port, String serverurl, String cbid)
 	{
@@ -38,10 +53,39 @@ public class HMXRConnection extends Thread implements HMConnection {
 
 		cuxDkludges=(port==8701);
 
+		pool=new HMXRConnectionPool(host,port,poolSize,poolIdleTimeout);
+		requestExecutor=newRequestExecutor(poolSize,"XML-RPC requests "+cbid);
+		discoveryPool=new HMXRConnectionPool(host,port,discoveryParallelism,poolIdleTimeout);
+		discoveryRequestExecutor=newRequestExecutor(discoveryParallelism,"XML-RPC discovery requests "+cbid);
+		setBatcher=setBatchWindow>0?new HMXRSetValueBatcher(this,setBatchWindow,setBatchMaxSize):null;
+
+		if(poolIdleTimeout>0)
+			Main.t.schedule(new TimerTask(){
+				@Override
+				public void run()
+				{
+					pool.evictIdle();
+					discoveryPool.evictIdle();
+				}
+			},poolIdleTimeout,poolIdleTimeout);
+
 		// Queue a deinit on shutdown
 		Runtime.getRuntime().addShutdownHook(new Deiniter());
 	}
 
+	private static ExecutorService newRequestExecutor(int threads,final String name)
+	{
+		return Executors.newFixedThreadPool(threads,new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t=new Thread(r,name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
 	// Deinit on shutdown
 	private class Deiniter extends Thread
 	{
@@ -98,32 +142,26 @@ public class HMXRConnection extends Thread implements HMConnection {
 		}
 	}
 
-	public synchronized HMXRResponse sendRequest(HMXRMsg m, boolean retry) throws IOException, ParseException
+	public HMXRResponse sendRequest(HMXRMsg m, boolean retry) throws IOException, ParseException
 	{
+		HMXRConnectionPool.PooledConnection c=null;
 		try
 		{
-			if(s==null)
-				s=new Socket(host,port);
-
-			s.getOutputStream().write(m.prepareData());
-			return HMXRResponse.readMsg(s,false);
+			c=pool.checkout();
+			HMXRResponse r=c.transact(m);
+			pool.checkin(c);
+			return r;
 		}
 		catch(Exception ioe)
 		{
 			// In any case, close the socket, so it's reopened upon retry
-			try
-			{
-				s.close();
-			}
-			catch(Exception e)
-			{
-				/* Ignore anything that happened during closing, we don't care */
-			}
-			s=null;
+			if(c!=null)
+				pool.discard(c);
 
 			if(retry)
 				throw ioe; // Just rethrow
 
+			// The pool slot has been released, so other requests can proceed while we wait
 			L.log(Level.WARNING,"Error during transaction handling",ioe);
 			try
 			{
@@ -141,6 +179,154 @@ public class HMXRConnection extends Thread implements HMConnection {
 		return sendRequest(m,true);
 	}
 
+	private static final long requestTimeout=Long.getLong("hm2mqtt.hm.requestTimeout",30).longValue()*1000;
+
+	static final ScheduledExecutorService scheduler=Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t=new Thread(r,"XML-RPC scheduler");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/*
+	 * A request running on the request executor. Timing out or cancelling it
+	 * closes the connection it's waiting on, which frees the executor thread.
+	 */
+	private final class AsyncRequest extends CompletableFuture<HMXRResponse> implements Runnable
+	{
+		private final HMXRMsg m;
+		private final HMXRConnectionPool pool;
+		private volatile HMXRConnectionPool.PooledConnection inFlight;
+
+		AsyncRequest(HMXRMsg m,HMXRConnectionPool pool)
+		{
+			this.m=m;
+			this.pool=pool;
+		}
+
+		/*
+		 * A pooled connection may have been closed by the peer while it was idle,
+		 * so an I/O error on a reused connection is retried once on a new one
+		 */
+		@Override
+		public void run()
+		{
+			boolean fresh=false;
+			for(;;)
+			{
+				if(isDone())
+					return;
+				HMXRConnectionPool.PooledConnection c=null;
+				try
+				{
+					c=pool.checkout(fresh);
+					inFlight=c;
+					if(isDone())
+					{
+						inFlight=null;
+						pool.checkin(c);
+						return;
+					}
+					HMXRResponse r=c.transact(m);
+					inFlight=null;
+					if(complete(r))
+						pool.checkin(c);
+					else
+						pool.discard(c);
+					return;
+				}
+				catch(Exception e)
+				{
+					inFlight=null;
+					boolean retry=!fresh && c!=null && c.reused && e instanceof IOException && !isDone();
+					if(c!=null)
+						pool.discard(c);
+					if(!retry)
+					{
+						completeExceptionally(e);
+						return;
+					}
+					L.fine("Retrying "+m.getMethodName()+" to "+host+":"+port+" on a new connection after "+e);
+					fresh=true;
+				}
+			}
+		}
+
+		void abort()
+		{
+			HMXRConnectionPool.PooledConnection c=inFlight;
+			if(c!=null)
+				c.close();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			boolean cancelled=super.cancel(mayInterruptIfRunning);
+			if(cancelled)
+				abort();
+			return cancelled;
+		}
+	}
+
+	/*
+	 * Non-blocking variant of sendRequest(), with a deadline after which the
+	 * future fails with a TimeoutException. Only retries (once, within the
+	 * deadline) when a reused pooled connection turns out to be stale.
+	 */
+	public CompletableFuture<HMXRResponse> sendRequestAsync(HMXRMsg m, long timeout)
+	{
+		return sendRequestAsync(m,timeout,pool,requestExecutor);
+	}
+
+	private CompletableFuture<HMXRResponse> sendRequestAsync(final HMXRMsg m, long timeout, HMXRConnectionPool pool, ExecutorService executor)
+	{
+		final AsyncRequest r=new AsyncRequest(m,pool);
+		final ScheduledFuture<?> deadline=scheduler.schedule(new Runnable(){
+			@Override
+			public void run()
+			{
+				if(r.completeExceptionally(new TimeoutException(m.getMethodName()+" to "+host+":"+port+" timed out")))
+					r.abort();
+			}
+		},timeout,TimeUnit.MILLISECONDS);
+		r.whenComplete((response,t)->deadline.cancel(false));
+		try
+		{
+			executor.execute(r);
+		}
+		catch(RejectedExecutionException e)
+		{
+			r.completeExceptionally(e);
+		}
+		return r;
+	}
+
+	public CompletableFuture<HMXRResponse> sendRequestAsync(HMXRMsg m)
+	{
+		return sendRequestAsync(m,requestTimeout);
+	}
+
+	/*
+	 * Turns fault replies into a HMXRFaultException, and returns the first value otherwise
+	 */
+	static Object resultOf(HMXRResponse r)
+	{
+		if(r.isFailedRequest())
+			throw new CompletionException(new HMXRFaultException(r.getFaultCode(),r.getFaultString()));
+		return r.getData().isEmpty()?null:r.getData().get(0);
+	}
+
+	static Throwable unwrap(Throwable t)
+	{
+		while(t instanceof CompletionException && t.getCause()!=null)
+			t=t.getCause();
+		return t;
+	}
+
 	static public String channelIDtoAddress(String chid)
 	{
 		int six=chid.indexOf(':');
@@ -149,18 +335,17 @@ public class HMXRConnection extends Thread implements HMConnection {
 		return chid;
 	}
 
-	private final Set<String> warnedUnknownAddress=new HashSet<String>();
+	private final Set<String> warnedUnknownAddress=Collections.synchronizedSet(new HashSet<String>());
 
 	@Override
-	public void handleEvent(List<?> parms)
+	public void handleEvent(HMEvent event)
 	{
-		String address=parms.get(1).toString();
-		String datapoint=parms.get(2).toString();
-		Object val=parms.get(3);
+		String address=event.address;
+		String datapoint=event.datapoint;
+		Object val=event.getValue();
 
-		L.finest("Got CB "+address+" "+datapoint+" "+val);
-
-		String topic;
+		if(L.isLoggable(Level.FINEST))
+			L.finest("Got CB "+address+" "+datapoint+" "+val);
 
 		if("CENTRAL".equals(address))
 		{
@@ -171,20 +356,47 @@ public class HMXRConnection extends Thread implements HMConnection {
 		DeviceInfo di=DeviceInfo.getByAddress(address);
 		if(di==null)
 		{
-			if(initFinished && newDevicesFinished)
+			if(initFinished && pendingDiscoveries.get()==0)
 				L.severe("Got event for unknown device address "+address+" - this should not happen and suggests a problem in init/newDevice/listDevice synchronisation!");
 			return;
 		}
-		// We don't want to retain ACTION one-shot keypress notifications
+		if(!discoveryBuffers.isEmpty())
+		{
+			synchronized(discoveryBuffers)
+			{
+				DiscoveryBuffer buffer=discoveryBuffers.get(address);
+				if(buffer!=null)
+				{
+					// The paramset description is still being fetched, hold the event back until it's there
+					if(buffer.events.size()>=maxBufferedEventsPerDevice)
+						buffer.events.remove(0);
+					buffer.events.add(new Object[]{datapoint,val});
+					return;
+				}
+			}
+		}
+		publishEvent(di,datapoint,val);
+	}
+
+	private void publishEvent(DeviceInfo di,String datapoint,Object val)
+	{
+		String topic;
+
 		DatapointInfo dpi=di.getValueDatapointInfo(datapoint);
+		if(dpi==null)
+		{
+			L.fine("Got event for unknown datapoint "+di.address+"."+datapoint+", ignoring");
+			return;
+		}
+		// We don't want to retain ACTION one-shot keypress notifications
 		boolean retain=!dpi.isAction();
 
 		if(di.name==null)
 		{
 			// We only want to warn once per unknown device
 			if(warnedUnknownAddress.add(di.address))
-				L.warning("Unable to resolve address "+address+" to a ReGa name");
-			topic=address;
+				L.warning("Unable to resolve address "+di.address+" to a ReGa name");
+			topic=di.address;
 			ReGaDeviceNameResolver.queueNameFetch();
 			// If the name resolution failure is likely to be temporary, do not retain the value
 			if(ReGaDeviceNameResolver.couldTheoreticallyResolveNames())
@@ -192,65 +404,55 @@ public class HMXRConnection extends Thread implements HMConnection {
 		}
 		else
 			topic=di.name;
-		dpi.publish(topic, val, di.address, null);
+		dpi.publish(di, topic, val, null);
 	}
 
-	static private Executor longRunningRequestDispatcher=Executors.newCachedThreadPool();
-
 	@Override
-	public void getValue(final DeviceInfo di, final String topic, final String datapoint, final String value)
+	public CompletableFuture<Object> getValue(DeviceInfo di, String datapoint)
 	{
-		longRunningRequestDispatcher.execute(new Runnable(){
-			@Override
-			public void run()
-			{
-				try
-				{
-					HMXRMsg m=new HMXRMsg("getValue");
-					m.addArg(di.address);
-					m.addArg(datapoint);
-					HMXRResponse response=sendRequest(m);
-					if(response.isFailedRequest())
-						L.log(Level.INFO,"getValue on "+di+"/"+datapoint+" failed with "+response.getFaultCode()+": "+response.getFaultString());
-					else
-					{
-						// We don't want to retain ACTION one-shot keypress notifications
-						DatapointInfo dpi=di.getValueDatapointInfo(datapoint);
-						dpi.publish(topic, response.getData().get(0), di.address, value);
-					}
-				}
-				catch(IOException | ParseException e)
-				{
-					L.log(Level.WARNING,"Error when getting value "+datapoint+" from "+di,e);
-				}
-			}
-		});
+		HMXRMsg m=new HMXRMsg("getValue");
+		m.addArg(di.address);
+		m.addArg(datapoint);
+		return sendRequestAsync(m).thenApply(HMXRConnection::resultOf);
 	}
 
 	@Override
-	public void setValue(DeviceInfo di, String datapoint, String value)
+	public CompletableFuture<Void> setValue(final DeviceInfo di, final String datapoint, final String value)
 	{
-		HMXRMsg m=new HMXRMsg("setValue");
-		m.addArg(di.address);
-		m.addArg(datapoint);
-
-		try
+		DatapointInfo dpi=di.getValueDatapointInfo(datapoint);
+		if(dpi==null)
 		{
-			DatapointInfo dpi=di.getValueDatapointInfo(datapoint);
-			if(dpi==null)
-			{
-				L.info("Unknown datapoint "+di.address+"."+datapoint+", ignoring set");
-				return;
-			}
-			m.addArg(dpi.convertedValue(value));
-			HMXRResponse response=sendRequest(m);
-			L.log(Level.INFO,"setValue returned "+response);
-			return;
+			L.info("Unknown datapoint "+di.address+"."+datapoint+", ignoring set");
+			// Fail, so that e.g. a set fan-out doesn't count it as done
+			CompletableFuture<Void> f=new CompletableFuture<>();
+			f.completeExceptionally(new IllegalArgumentException("Unknown datapoint "+datapoint));
+			return f;
 		}
-		catch(IOException | ParseException e)
+		CompletableFuture<Void> f;
+		if(setBatcher!=null)
 		{
-			L.log(Level.WARNING,"Error when setting value "+datapoint+"="+value+" on "+di,e);
+			f=setBatcher.submit(di.address,datapoint,dpi.convertedValue(value)).thenApply(r->{
+				L.log(Level.INFO,"setValue returned "+r);
+				return null;
+			});
 		}
+		else
+		{
+			HMXRMsg m=new HMXRMsg("setValue");
+			m.addArg(di.address);
+			m.addArg(datapoint);
+			m.addArg(dpi.convertedValue(value));
+			f=sendRequestAsync(m).thenApply(r->{
+				resultOf(r);
+				L.log(Level.INFO,"setValue returned "+r);
+				return null;
+			});
+		}
+		f.whenComplete((r,t)->{
+			if(t!=null)
+				L.log(Level.WARNING,"Error when setting value "+datapoint+"="+value+" on "+di,unwrap(t));
+		});
+		return f;
 	}
 
 	/*
@@ -261,32 +463,169 @@ public class HMXRConnection extends Thread implements HMConnection {
 	@Override
 	public void handleNewDevices(List<?> parms) throws IOException, ParseException
 	{
-		newDevicesFinished=false;
 		@SuppressWarnings("unchecked")
 		List<Map<String,Object>> items=(List<Map<String, Object>>)parms.get(1);
 		L.info("XML-RPC server "+cbid+" informs us about "+items.size()+" new devices");
 		ReGaDeviceNameResolver.queueNameFetch();
+
+		// Register all devices right away and acknowledge the call. The paramset
+		// descriptions are fetched in the background, events for devices which
+		// are still being discovered are held back until then.
+		final List<DiscoveryItem> discovery=new ArrayList<>(items.size());
 		for(Map<String,Object> dev:items)
 		{
 			DeviceInfo di=DeviceInfo.addNewDevice(
 				(String)dev.get("ADDRESS"),
 				((Number)dev.get("VERSION")).intValue(),
-				cbid
+				cbid,
+				ParamsetDescriptionCache.typeKey(cbid,dev)
 			);
+			synchronized(discoveryBuffers)
+			{
+				// The device may still be discovered from an earlier list; keep what it buffered
+				DiscoveryBuffer buffer=discoveryBuffers.get(di.address);
+				if(buffer==null)
+					discoveryBuffers.put(di.address,buffer=new DiscoveryBuffer());
+				buffer.discoveries++;
+			}
 			@SuppressWarnings("unchecked")
 			List<String> paramSets=(List<String>)dev.get("PARAMSETS");
-			if(paramSets.contains("VALUES"))
+			discovery.add(new DiscoveryItem(di,paramSets.contains("VALUES"),paramSets.contains("MASTER")));
+		}
+		pendingDiscoveries.incrementAndGet();
+		discoveryExecutor.execute(new Runnable(){
+			@Override
+			public void run()
 			{
-				di.values=getParamsetDescription(di.address, "VALUES");
+				discover(discovery);
 			}
-			if(paramSets.contains("MASTER"))
+		});
+	}
+
+	private static final int discoveryParallelism=Math.max(Integer.getInteger("hm2mqtt.hm.discoveryParallelism",2).intValue(),1);
+	private static final int maxBufferedEventsPerDevice=16;
+
+	private final AtomicInteger pendingDiscoveries=new AtomicInteger();
+	private final Map<String,DiscoveryBuffer> discoveryBuffers=new ConcurrentHashMap<>();
+	private final ExecutorService discoveryExecutor=Executors.newSingleThreadExecutor(new ThreadFactory(){
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t=new Thread(r,"XML-RPC device discovery");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private static final class DiscoveryBuffer
+	{
+		final List<Object[]> events=new ArrayList<>();
+		// Discoveries of this device still running
+		int discoveries;
+	}
+
+	private static final class DiscoveryItem
+	{
+		final DeviceInfo di;
+		final boolean values;
+		final boolean master;
+
+		DiscoveryItem(DeviceInfo di,boolean values,boolean master)
+		{
+			this.di=di;
+			this.values=values;
+			this.master=master;
+		}
+	}
+
+	/*
+	 * Fetches the paramset descriptions of new devices with at most
+	 * hm.discoveryParallelism devices in flight, each on one of the
+	 * discovery connections
+	 */
+	private void discover(List<DiscoveryItem> items)
+	{
+		long start=System.currentTimeMillis();
+		final Semaphore inFlight=new Semaphore(discoveryParallelism);
+		final AtomicInteger done=new AtomicInteger();
+		final int total=items.size();
+		final int progressStep=Math.max(total/10,1);
+		List<CompletableFuture<Void>> all=new ArrayList<>(total);
+		for(final DiscoveryItem item:items)
+		{
+			inFlight.acquireUninterruptibly();
+			CompletableFuture<Void> f=discover(item).whenComplete((r,t)->{
+				inFlight.release();
+				if(t!=null)
+					L.log(Level.WARNING,"Error obtaining paramset descriptions for "+item.di,unwrap(t));
+				finishDiscovery(item.di);
+				int d=done.incrementAndGet();
+				if(d%progressStep==0 && d<total)
+					L.info("Discovery of new devices from "+cbid+": "+d+" of "+total+" done");
+			});
+			all.add(f);
+		}
+		try
+		{
+			CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).join();
+		}
+		catch(CompletionException e)
+		{
+			/* Already logged per device */
+		}
+		pendingDiscoveries.decrementAndGet();
+		DeviceInfo.saveDeviceInfos();
+		L.info("Finished processing new device list of "+total+" devices from "+cbid+" in "+(System.currentTimeMillis()-start)+"ms"
+			+" ("+ParamsetDescriptionCache.getSize()+" distinct paramset descriptions, "
+			+ParamsetDescriptionCache.getHits()+" fetches saved)");
+	}
+
+	private CompletableFuture<Void> discover(final DiscoveryItem item)
+	{
+		CompletableFuture<Void> f=CompletableFuture.completedFuture(null);
+		final DeviceInfo di=item.di;
+		if(item.values)
+			f=f.thenCompose(v->ParamsetDescriptionCache.get(di.typeKey,"VALUES",()->getParamsetDescriptionAsync(di.address,"VALUES")))
+				.thenAccept(d->di.values=d);
+		if(item.master)
+			f=f.thenCompose(v->ParamsetDescriptionCache.get(di.typeKey,"MASTER",()->getParamsetDescriptionAsync(di.address,"MASTER")))
+				.thenAccept(d->di.params=d);
+		return f;
+	}
+
+	/*
+	 * Replays the held back events. The buffer is only removed once it is
+	 * empty, so events arriving meanwhile are queued behind the older ones
+	 * instead of being published before them.
+	 */
+	private void finishDiscovery(DeviceInfo di)
+	{
+		synchronized(discoveryBuffers)
+		{
+			DiscoveryBuffer buffer=discoveryBuffers.get(di.address);
+			if(buffer==null || --buffer.discoveries>0)
+				return;
+		}
+		for(;;)
+		{
+			List<Object[]> buffered;
+			synchronized(discoveryBuffers)
 			{
-				di.params=getParamsetDescription(di.address, "MASTER");
+				DiscoveryBuffer buffer=discoveryBuffers.get(di.address);
+				// Gone, or the device was reported again and is being discovered anew
+				if(buffer==null || buffer.discoveries>0)
+					return;
+				if(buffer.events.isEmpty())
+				{
+					discoveryBuffers.remove(di.address);
+					return;
+				}
+				buffered=new ArrayList<>(buffer.events);
+				buffer.events.clear();
 			}
+			for(Object[] ev:buffered)
+				publishEvent(di,(String)ev[0],ev[1]);
 		}
-		newDevicesFinished=true;
-		DeviceInfo.saveDeviceInfos();
-		L.info("Finished processing new device list");
 	}
 
 	/*
@@ -326,15 +665,31 @@ public class HMXRConnection extends Thread implements HMConnection {
 
 
 	@Override
-	@SuppressWarnings("unchecked")
 	public Map<String, DatapointInfo> getParamsetDescription(String address, String which) throws IOException, ParseException
 	{
 		L.fine("Obtaining paramSetDescription for "+which+" from "+address);
-		Map<String, DatapointInfo> res=new HashMap<>();
 		HMXRMsg m=new HMXRMsg("getParamsetDescription");
 		m.addArg(address);
 		m.addArg(which);
-		HMXRResponse r=sendRequest(m);
+		return parseParamsetDescription(sendRequest(m));
+	}
+
+	private CompletableFuture<Map<String, DatapointInfo>> getParamsetDescriptionAsync(String address, String which)
+	{
+		L.fine("Obtaining paramSetDescription for "+which+" from "+address);
+		HMXRMsg m=new HMXRMsg("getParamsetDescription");
+		m.addArg(address);
+		m.addArg(which);
+		return sendRequestAsync(m,requestTimeout,discoveryPool,discoveryRequestExecutor).thenApply(r->{
+			resultOf(r);
+			return parseParamsetDescription(r);
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, DatapointInfo> parseParamsetDescription(HMXRResponse r)
+	{
+		Map<String, DatapointInfo> res=new HashMap<>();
 		for(Object d:r.getData())
 		{
 			if(d instanceof Map)
@@ -352,20 +707,21 @@ public class HMXRConnection extends Thread implements HMConnection {
 	}
 
 	@Override
-	public void reportValueUsage(DeviceInfo di, String datapoint, boolean use)
+	public CompletableFuture<Void> reportValueUsage(final DeviceInfo di, String datapoint, final boolean use)
 	{
 		HMXRMsg m=new HMXRMsg("reportValueUsage");
 		m.addArg(di.address);
 		m.addArg(datapoint);
 		m.addArg(Integer.valueOf(use?1:0));
-		try
-		{
-			sendRequest(m);
-		}
-		catch(IOException | ParseException e)
-		{
-			L.log(Level.WARNING,"Error when reportValueUsage "+use+" on "+di,e);
-		}
+		CompletableFuture<Void> f=sendRequestAsync(m).thenApply(r->{
+			resultOf(r);
+			return null;
+		});
+		f.whenComplete((r,t)->{
+			if(t!=null)
+				L.log(Level.WARNING,"Error when reportValueUsage "+use+" on "+di,unwrap(t));
+		});
+		return f;
 	}
 
 
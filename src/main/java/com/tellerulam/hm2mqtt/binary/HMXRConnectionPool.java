@@ -0,0 +1,183 @@
+/*
+ * A pool of outgoing binary "XML-RPC" connections to one interface process
+ *
+ * Checkout is fair (FIFO), so a burst of bulk requests can't starve others.
+ * Connections which have been idle for a while are probed before reuse, and
+ * evicted altogether after the idle timeout.
+ */
+
+package com.tellerulam.hm2mqtt.binary;
+
+import java.io.*;
+import java.net.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+final class HMXRConnectionPool
+{
+	private static final Logger L=Logger.getLogger(HMXRConnectionPool.class.getName());
+
+	private static final long healthCheckAfter=Long.getLong("hm2mqtt.hm.poolHealthCheckIdle",5).longValue()*1000;
+
+	static final class PooledConnection
+	{
+		final Socket s;
+		final HMXRDecoder decoder=new HMXRDecoder();
+		long lastUsed;
+		// Has been in the pool before, so the peer may have closed it meanwhile
+		boolean reused;
+
+		PooledConnection(Socket s)
+		{
+			this.s=s;
+			lastUsed=System.currentTimeMillis();
+		}
+
+		HMXRResponse transact(HMXRMsg m) throws IOException, ParseException
+		{
+			m.writeTo(s.getOutputStream());
+			return decoder.readMsg(s.getInputStream(),false);
+		}
+
+		/*
+		 * An idle connection must neither be closed by the peer nor have unexpected
+		 * data pending. Probe with a very short read timeout.
+		 */
+		boolean isHealthy()
+		{
+			if(s.isClosed()||!s.isConnected()||s.isInputShutdown()||s.isOutputShutdown())
+				return false;
+			if(System.currentTimeMillis()-lastUsed<healthCheckAfter)
+				return true;
+			try
+			{
+				s.setSoTimeout(1);
+				try
+				{
+					s.getInputStream().read();
+					// Either EOF or garbage, neither is usable
+					return false;
+				}
+				catch(SocketTimeoutException ste)
+				{
+					return true;
+				}
+				finally
+				{
+					s.setSoTimeout(0);
+				}
+			}
+			catch(IOException e)
+			{
+				return false;
+			}
+		}
+
+		void close()
+		{
+			try
+			{
+				s.close();
+			}
+			catch(IOException e)
+			{
+				/* Ignore anything that happened during closing, we don't care */
+			}
+		}
+	}
+
+	private final String host;
+	private final int port;
+	private final int size;
+	private final long idleTimeout;
+	private final Semaphore permits;
+	// Most recently used first, so the tail ages out
+	private final Deque<PooledConnection> idle=new ArrayDeque<PooledConnection>();
+
+	HMXRConnectionPool(String host,int port,int size,long idleTimeout)
+	{
+		this.host=host;
+		this.port=port;
+		this.size=size;
+		this.idleTimeout=idleTimeout;
+		this.permits=new Semaphore(size,true);
+	}
+
+	int getSize()
+	{
+		return size;
+	}
+
+	PooledConnection checkout() throws IOException
+	{
+		return checkout(false);
+	}
+
+	/*
+	 * With fresh set, always opens a new connection instead of reusing an idle one
+	 */
+	PooledConnection checkout(boolean fresh) throws IOException
+	{
+		permits.acquireUninterruptibly();
+		try
+		{
+			while(!fresh)
+			{
+				PooledConnection c;
+				synchronized(idle)
+				{
+					c=idle.pollFirst();
+				}
+				if(c==null)
+					break;
+				if(c.isHealthy())
+					return c;
+				L.fine("Discarding stale connection to "+host+":"+port);
+				c.close();
+			}
+			return new PooledConnection(new Socket(host,port));
+		}
+		catch(IOException|RuntimeException e)
+		{
+			permits.release();
+			throw e;
+		}
+	}
+
+	void checkin(PooledConnection c)
+	{
+		c.lastUsed=System.currentTimeMillis();
+		c.reused=true;
+		synchronized(idle)
+		{
+			idle.addFirst(c);
+		}
+		permits.release();
+	}
+
+	/*
+	 * For connections which failed; they're closed so the next checkout opens a new one
+	 */
+	void discard(PooledConnection c)
+	{
+		c.close();
+		permits.release();
+	}
+
+	void evictIdle()
+	{
+		long limit=System.currentTimeMillis()-idleTimeout;
+		List<PooledConnection> evicted=new ArrayList<PooledConnection>();
+		synchronized(idle)
+		{
+			while(!idle.isEmpty()&&idle.peekLast().lastUsed<limit)
+				evicted.add(idle.pollLast());
+		}
+		for(PooledConnection c:evicted)
+			c.close();
+		if(!evicted.isEmpty())
+			L.fine("Evicted "+evicted.size()+" idle connections to "+host+":"+port);
+	}
+}
@@ -0,0 +1,421 @@
+/*
+ * Decodes HomeMatic "XML-RPC" binary frames straight from a reusable ByteBuffer
+ *
+ * One decoder is meant to be owned by one connection; it is not thread safe. All
+ * returned values are detached from the buffer, so the buffer is reused for the
+ * next frame.
+ */
+package com.tellerulam.hm2mqtt.binary;
+
+import com.tellerulam.hm2mqtt.HMEvent;
+import com.tellerulam.hm2mqtt.HMEventSink;
+import com.tellerulam.hm2mqtt.HMXRMap;
+
+import java.io.*;
+import java.math.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.text.*;
+import java.util.*;
+import java.util.logging.*;
+
+public class HMXRDecoder
+{
+	private static final Logger L=Logger.getLogger(HMXRDecoder.class.getName());
+
+	private static final boolean directBuffers=Boolean.getBoolean("hm2mqtt.hm.directBuffers");
+	private static final int INITIAL_CAPACITY=4096;
+
+	private final boolean direct;
+	private ByteBuffer buf;
+	private ByteBuffer in;
+	private byte scratch[];
+
+	public HMXRDecoder()
+	{
+		this(directBuffers);
+	}
+
+	public HMXRDecoder(boolean direct)
+	{
+		this.direct=direct;
+	}
+
+	public static boolean useDirectBuffers()
+	{
+		return directBuffers;
+	}
+
+	/*
+	 * Returns a buffer of at least the given capacity, reusing the old one if possible
+	 */
+	public static ByteBuffer ensureCapacity(ByteBuffer b,int size,boolean direct)
+	{
+		if(b!=null&&b.capacity()>=size)
+			return b;
+		int newSize=Math.max(size,b!=null?b.capacity()*2:INITIAL_CAPACITY);
+		return direct?ByteBuffer.allocateDirect(newSize):ByteBuffer.allocate(newSize);
+	}
+
+	private void ensureCapacity(int size)
+	{
+		buf=ensureCapacity(buf,size,direct);
+	}
+
+	private void readFully(InputStream is,int len,String what) throws IOException
+	{
+		buf.clear();
+		buf.limit(len);
+		if(buf.hasArray())
+		{
+			byte a[]=buf.array();
+			int offset=buf.arrayOffset();
+			while(len>0)
+			{
+				int r=is.read(a,offset,len);
+				if(r<1)
+					throw new EOFException("EOF while reading "+what);
+				len-=r;
+				offset+=r;
+			}
+		}
+		else
+		{
+			byte s[]=scratch(Math.min(len,INITIAL_CAPACITY));
+			while(len>0)
+			{
+				int r=is.read(s,0,Math.min(len,s.length));
+				if(r<1)
+					throw new EOFException("EOF while reading "+what);
+				buf.put(s,0,r);
+				len-=r;
+			}
+		}
+		buf.rewind();
+	}
+
+	private byte[] scratch(int len)
+	{
+		if(scratch==null||scratch.length<len)
+			scratch=new byte[Math.max(len,64)];
+		return scratch;
+	}
+
+	/*
+	 * Reads one complete frame from the stream. The returned buffer is positioned
+	 * at the start of the payload, and only valid until the next call.
+	 */
+	public ByteBuffer readFrame(InputStream is) throws IOException
+	{
+		ensureCapacity(8);
+		readFully(is,8,"header");
+		if(buf.get(0)!='B'||buf.get(1)!='i'||buf.get(2)!='n')
+			throw new UnsupportedEncodingException("No BinX signature");
+		int datasize=buf.getInt(4);
+		if(datasize<0)
+			throw new UnsupportedEncodingException("Invalid frame length "+datasize);
+		ensureCapacity(datasize);
+		readFully(is,datasize,"data");
+		return buf;
+	}
+
+	public HMXRResponse readMsg(InputStream is,boolean methodHeader) throws IOException, ParseException
+	{
+		return decode(readFrame(is),methodHeader);
+	}
+
+	/*
+	 * Decodes the payload of a frame (without the 8 byte header) between the
+	 * buffer's position and limit
+	 */
+	public HMXRResponse decode(ByteBuffer frame,boolean methodHeader) throws ParseException
+	{
+		in=frame;
+		try
+		{
+			String methodName=null;
+			if(methodHeader)
+			{
+				methodName=readName(readInt());
+				// Skip arg count
+				readInt();
+			}
+			List<Object> rd=new ArrayList<Object>();
+			while(in.hasRemaining())
+				rd.add(readRpcValue());
+			return new HMXRResponse(methodName,rd);
+		}
+		catch(BufferUnderflowException|IndexOutOfBoundsException e)
+		{
+			throw new ParseException("Truncated frame",in.position());
+		}
+		finally
+		{
+			in=null;
+		}
+	}
+
+	/*
+	 * Fast path for inbound calls: reads the method name of a call frame, leaving
+	 * the buffer positioned at the first argument
+	 */
+	public String decodeMethodName(ByteBuffer frame) throws ParseException
+	{
+		in=frame;
+		try
+		{
+			String methodName=readName(readInt());
+			// Skip arg count
+			readInt();
+			return methodName;
+		}
+		catch(BufferUnderflowException|IndexOutOfBoundsException e)
+		{
+			throw new ParseException("Truncated frame",in.position());
+		}
+		finally
+		{
+			in=null;
+		}
+	}
+
+	/*
+	 * Decodes the arguments of an "event" call straight into the given event
+	 */
+	public void decodeEvent(ByteBuffer frame,HMEvent ev) throws ParseException
+	{
+		in=frame;
+		try
+		{
+			readEvent(ev);
+		}
+		catch(BufferUnderflowException|IndexOutOfBoundsException e)
+		{
+			throw new ParseException("Truncated frame",in.position());
+		}
+		finally
+		{
+			in=null;
+		}
+	}
+
+	/*
+	 * Decodes the argument of a "system.multicall" call, passing every contained
+	 * event to the sink without building the generic call structures.
+	 * Returns the number of calls in the multicall.
+	 */
+	public int decodeMulticallEvents(ByteBuffer frame,HMEvent ev,HMEventSink sink) throws ParseException
+	{
+		in=frame;
+		try
+		{
+			expectType(0x100);
+			int numCalls=readInt();
+			for(int c=0;c<numCalls;c++)
+			{
+				expectType(0x101);
+				int numElements=readInt();
+				String method=null;
+				int paramsPos=-1;
+				while(numElements-->0)
+				{
+					String key=readName(readInt());
+					if("methodName".equals(key)&&in.getInt(in.position())==3)
+					{
+						readInt();
+						method=readName(readInt());
+					}
+					else
+					{
+						if("params".equals(key))
+							paramsPos=in.position();
+						skipValue();
+					}
+				}
+				if("event".equals(method)&&paramsPos>=0)
+				{
+					int endPos=in.position();
+					in.position(paramsPos);
+					expectType(0x100);
+					readInt();
+					readEvent(ev);
+					in.position(endPos);
+					try
+					{
+						sink.handleEvent(ev);
+					}
+					catch(RuntimeException e)
+					{
+						L.log(Level.WARNING,"Error when handling event "+ev,e);
+					}
+				}
+				else
+					L.warning("Unknown method in multicall called by XML-RPC service: "+method);
+			}
+			return numCalls;
+		}
+		catch(BufferUnderflowException|IndexOutOfBoundsException e)
+		{
+			throw new ParseException("Truncated frame",in.position());
+		}
+		finally
+		{
+			in=null;
+		}
+	}
+
+	private void expectType(int expected) throws ParseException
+	{
+		int type=readInt();
+		if(type!=expected)
+			throw new ParseException("Unexpected data type "+type+", expected "+expected,in.position()-4);
+	}
+
+	private void readEvent(HMEvent ev) throws ParseException
+	{
+		expectType(3);
+		ev.cbid=readName(readInt());
+		expectType(3);
+		ev.address=readName(readInt());
+		expectType(3);
+		ev.datapoint=readName(readInt());
+		int type=readInt();
+		switch(type)
+		{
+			case 1:
+				ev.setInt(readInt());
+				break;
+			case 2:
+				ev.setBool(in.get()!=0);
+				break;
+			case 4:
+				int mantissa=readInt();
+				int exponent=readInt();
+				ev.setDouble(Math.scalb((double)mantissa,exponent-30));
+				break;
+			default:
+				// Strings and the rare structured values take the generic path
+				in.position(in.position()-4);
+				ev.setObject(readRpcValue());
+		}
+	}
+
+	private void skipValue() throws ParseException
+	{
+		int type=readInt();
+		switch(type)
+		{
+			case 1:
+			case 5:
+				in.position(in.position()+4);
+				break;
+			case 2:
+				in.position(in.position()+1);
+				break;
+			case 3:
+				int len=readInt();
+				in.position(in.position()+len);
+				break;
+			case 4:
+				in.position(in.position()+8);
+				break;
+			case 0x100:
+				int numElements=readInt();
+				while(numElements-->0)
+					skipValue();
+				break;
+			case 0x101:
+				numElements=readInt();
+				while(numElements-->0)
+				{
+					int slen=readInt();
+					in.position(in.position()+slen);
+					skipValue();
+				}
+				break;
+			default:
+				throw new ParseException("Unknown data type "+type,in.position()-4);
+		}
+	}
+
+	private int readInt()
+	{
+		return in.getInt();
+	}
+
+	private String readString(int len)
+	{
+		String s;
+		if(in.hasArray())
+		{
+			s=new String(in.array(),in.arrayOffset()+in.position(),len,StandardCharsets.ISO_8859_1);
+			in.position(in.position()+len);
+		}
+		else
+		{
+			byte s2[]=scratch(len);
+			in.get(s2,0,len);
+			s=new String(s2,0,len,StandardCharsets.ISO_8859_1);
+		}
+		return s;
+	}
+
+	/*
+	 * Reads a string which is likely to be one of the well known names, like
+	 * addresses, datapoint names or struct keys
+	 */
+	private String readName(int len)
+	{
+		String s=HMXRDictionary.lookup(in,len);
+		if(s==null)
+			s=HMXRDictionary.intern(readString(len));
+		return s;
+	}
+
+	private Object readRpcValue() throws ParseException
+	{
+		int type=readInt();
+		switch(type)
+		{
+			case 1:
+				return Integer.valueOf(readInt());
+			case 2:
+				return in.get()!=0?Boolean.TRUE:Boolean.FALSE;
+			case 3:
+				return readString(readInt());
+			case 4:
+				int mantissa=readInt();
+				int exponent=readInt();
+				return decodeDouble(mantissa,exponent);
+			case 5:
+				return new Date(readInt()*1000);
+			case 0x100:
+				// Array
+				int numElements=readInt();
+				Collection<Object> array=new ArrayList<Object>(Math.max(0,Math.min(numElements,in.remaining()/4)));
+				while(numElements-->0)
+					array.add(readRpcValue());
+				return array;
+			case 0x101:
+				// Struct
+				numElements=readInt();
+				Map<String,Object> struct=new HMXRMap();
+				while(numElements-->0)
+				{
+					String name=readName(readInt());
+					struct.put(name,readRpcValue());
+				}
+				return struct;
+
+			default:
+				throw new ParseException("Unknown data type "+type,in.position()-4);
+		}
+	}
+
+	static BigDecimal decodeDouble(int mantissa,int exponent)
+	{
+		// mantissa/2^30*2^exponent, scaled exactly without Math.pow()
+		BigDecimal bd=new BigDecimal(Math.scalb((double)mantissa,exponent-30));
+		return bd.setScale(2,RoundingMode.HALF_DOWN);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Interns the small, mostly fixed set of strings the binary decoder sees
+ * over and over: callback ids, device addresses, datapoint names and struct
+ * keys. Lookups work directly on the ISO-8859-1 bytes in the receive buffer
+ * and do not allocate on a hit. The canonical instances are shared with
+ * DeviceInfo and DatapointInfo, so HashMap lookups by name mostly end at
+ * the identity check.
+ */
+
+package com.tellerulam.hm2mqtt.binary;
+
+import java.nio.*;
+import java.nio.charset.*;
+
+public final class HMXRDictionary
+{
+	private static final int maxEntries=Integer.getInteger("hm2mqtt.hm.dictionarySize",16384).intValue();
+
+	private static final class Entry
+	{
+		final String value;
+		final byte bytes[];
+		final int hash;
+
+		Entry(String value,byte bytes[],int hash)
+		{
+			this.value=value;
+			this.bytes=bytes;
+			this.hash=hash;
+		}
+	}
+
+	/*
+	 * Open addressing with linear probing. Readers don't lock; a reader racing
+	 * with an insert or resize simply misses and takes the slow path.
+	 */
+	private static volatile Entry table[]=new Entry[1024];
+	private static int size;
+
+	private HMXRDictionary()
+	{
+		/* Static only */
+	}
+
+	/*
+	 * Looks up the len bytes at the buffer's position. On a hit, the position is
+	 * advanced past the string and the canonical instance returned. On a miss,
+	 * null is returned and the position is left untouched.
+	 */
+	static String lookup(ByteBuffer b,int len)
+	{
+		int pos=b.position();
+		// Same as String.hashCode() for ISO-8859-1 strings
+		int h=0;
+		for(int ix=0;ix<len;ix++)
+			h=31*h+(b.get(pos+ix)&0xff);
+		Entry t[]=table;
+		int mask=t.length-1;
+		for(int slot=h&mask;;slot=(slot+1)&mask)
+		{
+			Entry e=t[slot];
+			if(e==null)
+				return null;
+			if(e.hash==h&&e.bytes.length==len&&matches(e.bytes,b,pos))
+			{
+				b.position(pos+len);
+				return e.value;
+			}
+		}
+	}
+
+	private static boolean matches(byte bytes[],ByteBuffer b,int pos)
+	{
+		for(int ix=0;ix<bytes.length;ix++)
+			if(bytes[ix]!=b.get(pos+ix))
+				return false;
+		return true;
+	}
+
+	/*
+	 * Returns the canonical instance of s, registering s itself if it's not known yet
+	 */
+	public static String intern(String s)
+	{
+		if(s==null)
+			return null;
+		int h=s.hashCode();
+		Entry t[]=table;
+		int mask=t.length-1;
+		for(int slot=h&mask;;slot=(slot+1)&mask)
+		{
+			Entry e=t[slot];
+			if(e==null)
+				break;
+			if(e.hash==h&&e.value.equals(s))
+				return e.value;
+		}
+		return add(s,h);
+	}
+
+	private static synchronized String add(String s,int h)
+	{
+		for(int ix=0;ix<s.length();ix++)
+			if(s.charAt(ix)>0xff)
+				return s;
+
+		Entry t=find(table,s,h);
+		if(t!=null)
+			return t.value;
+		if(size>=maxEntries)
+			return s;
+
+		if((size+1)*2>table.length)
+		{
+			Entry newTable[]=new Entry[table.length*2];
+			for(Entry e:table)
+				if(e!=null)
+					insert(newTable,e);
+			insert(newTable,new Entry(s,s.getBytes(StandardCharsets.ISO_8859_1),h));
+			table=newTable;
+		}
+		else
+			insert(table,new Entry(s,s.getBytes(StandardCharsets.ISO_8859_1),h));
+		size++;
+		return s;
+	}
+
+	private static Entry find(Entry t[],String s,int h)
+	{
+		int mask=t.length-1;
+		for(int slot=h&mask;;slot=(slot+1)&mask)
+		{
+			Entry e=t[slot];
+			if(e==null)
+				return null;
+			if(e.hash==h&&e.value.equals(s))
+				return e;
+		}
+	}
+
+	private static void insert(Entry t[],Entry e)
+	{
+		int mask=t.length-1;
+		int slot=e.hash&mask;
+		while(t[slot]!=null)
+			slot=(slot+1)&mask;
+		t[slot]=e;
+	}
+}
@@ -0,0 +1,24 @@
+/*
+ * A fault reply (faultCode/faultString) to an outgoing "XML-RPC" request
+ */
+
+package com.tellerulam.hm2mqtt.binary;
+
+import java.io.IOException;
+
+@SuppressWarnings("serial")
+public class HMXRFaultException extends IOException
+{
+	private final int faultCode;
+
+	public HMXRFaultException(int faultCode,String faultString)
+	{
+		super(faultCode+": "+faultString);
+		this.faultCode=faultCode;
+	}
+
+	public int getFaultCode()
+	{
+		return faultCode;
+	}
+}
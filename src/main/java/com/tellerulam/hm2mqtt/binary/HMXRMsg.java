@@ -4,48 +4,22 @@
 
 package com.tellerulam.hm2mqtt.binary;
 
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class HMXRMsg
 {
-	private byte data[];
-	private int dataoffset;
-
-	private void addByte(byte b)
-	{
-		if(dataoffset==data.length)
-		{
-			byte newdata[]=new byte[data.length*2];
-			System.arraycopy(data,0,newdata,0,data.length);
-			data=newdata;
-		}
-		data[dataoffset++]=b;
-	}
-	private void addInt(int n)
-	{
-		byte d[]=BigInteger.valueOf(n).toByteArray();
-		for(int c=0;c<4-d.length;c++)
-			addByte((byte)0);
-		for(byte s:d)
-			addByte(s);
-
-	}
-	private void addString(String s)
+	private static void putString(ByteBuffer b,String s)
 	{
-		byte sd[];
-		try
-		{
-			sd=s.getBytes("ISO-8859-1");
-		}
-		catch(UnsupportedEncodingException use)
+		// ISO-8859-1, one byte per char, unmappable chars become '?'
+		int len=s.length();
+		for(int ix=0;ix<len;ix++)
 		{
-			// Really shouldn't happen, fall back silently to platform encoding
-			sd=s.getBytes();
+			char ch=s.charAt(ix);
+			b.put(ch<256?(byte)ch:(byte)'?');
 		}
-		for(byte ch:sd)
-			addByte(ch);
 	}
 
 	final String methodname;
@@ -145,85 +119,148 @@ public class HMXRMsg
 		this.methodname=methodname;
 	}
 
-	private void addList(Collection<?> args)
+	private static int sizeOf(Collection<?> args)
 	{
+		int size=0;
 		for(Object o:args)
+			size+=sizeOf(o);
+		return size;
+	}
+
+	private static int sizeOf(Object o)
+	{
+		if(o.getClass()==String.class)
+			return 8+((String)o).length();
+		else if(o.getClass()==Boolean.class)
+			return 5;
+		else if(o.getClass()==Integer.class)
+			return 8;
+		else if(o.getClass()==Double.class)
+			return 12;
+		else if(o instanceof List<?>)
+			return 8+sizeOf((Collection<?>)o);
+		else if(o instanceof Map<?,?>)
 		{
-			if(o.getClass()==String.class)
-			{
-				addInt(3);
-				String s=(String)o;
-				addInt(s.length());
-				addString(s);
-			}
-			else if(o.getClass()==Boolean.class)
-			{
-				addInt(2);
-				addByte(((Boolean)o).booleanValue()?(byte)1:(byte)0);
-			}
-			else if(o.getClass()==Integer.class)
-			{
-				addInt(1);
-				addInt(((Integer)o).intValue());
-			}
-			else if(o.getClass()==Double.class)
-			{
-				addInt(4);
-				double v=Math.abs(((Double)o).doubleValue()),tmp=v;
-				int exp=0;
-				while(tmp>=2)
-				{
-					tmp=Math.abs(v/Math.pow(2,exp++));
-				}
-				int mantissa=(int)(Math.abs(v/Math.pow(2,exp))*0x40000000);
-				// Note that this limits the range of the inbound double
-				addInt(mantissa);
-				addInt(exp);
-			}
-			else if(o instanceof List<?>)
-			{
-				Collection<?> l=(Collection<?>)o;
-				addInt(0x100);
-				addInt(l.size());
-				addList(l);
-			}
-			else if(o instanceof Map<?,?>)
+			int size=8;
+			for(Map.Entry<?,?> me:((Map<?,?>)o).entrySet())
+				size+=4+((String)me.getKey()).length()+sizeOf(me.getValue());
+			return size;
+		}
+		return 0;
+	}
+
+	private static void putList(ByteBuffer b,Collection<?> args)
+	{
+		for(Object o:args)
+			putValue(b,o);
+	}
+
+	private static void putValue(ByteBuffer b,Object o)
+	{
+		if(o.getClass()==String.class)
+		{
+			b.putInt(3);
+			String s=(String)o;
+			b.putInt(s.length());
+			putString(b,s);
+		}
+		else if(o.getClass()==Boolean.class)
+		{
+			b.putInt(2);
+			b.put(((Boolean)o).booleanValue()?(byte)1:(byte)0);
+		}
+		else if(o.getClass()==Integer.class)
+		{
+			b.putInt(1);
+			b.putInt(((Integer)o).intValue());
+		}
+		else if(o.getClass()==Double.class)
+		{
+			b.putInt(4);
+			putDouble(b,((Double)o).doubleValue());
+		}
+		else if(o instanceof List<?>)
+		{
+			Collection<?> l=(Collection<?>)o;
+			b.putInt(0x100);
+			b.putInt(l.size());
+			putList(b,l);
+		}
+		else if(o instanceof Map<?,?>)
+		{
+			Map<?,?> l=(Map<?,?>)o;
+			b.putInt(0x101);
+			b.putInt(l.size());
+			for(Map.Entry<?,?> me:l.entrySet())
 			{
-				Map<?,?> l=(Map<?,?>)o;
-				addInt(0x101);
-				addInt(l.size());
-				for(Map.Entry<?,?> me:l.entrySet())
-				{
-					String key = (String)me.getKey();
-					addInt(key.length());
-					addString(key);
-					addList(Collections.singleton(me.getValue()));
-				}
+				String key=(String)me.getKey();
+				b.putInt(key.length());
+				putString(b,key);
+				putValue(b,me.getValue());
 			}
 		}
 	}
 
-	public byte[] prepareData()
+	/*
+	 * HM encodes doubles as mantissa/2^30*2^exp, with the magnitude of
+	 * mantissa/2^30 below 2. Note that this limits the range of the double.
+	 */
+	private static void putDouble(ByteBuffer b,double v)
+	{
+		double abs=Math.abs(v);
+		int exp=abs>=2?Math.getExponent(abs)+1:0;
+		int mantissa=(int)(Math.scalb(abs,-exp)*0x40000000);
+		b.putInt(v<0?-mantissa:mantissa);
+		b.putInt(exp);
+	}
+
+	private int payloadSize()
 	{
-		data=new byte[256];
+		int size=sizeOf(args);
+		if(methodname!=null)
+			size+=8+methodname.length();
+		return size;
+	}
+
+	private void encode(ByteBuffer b,int payloadSize)
+	{
+		b.put((byte)'B');
+		b.put((byte)'i');
+		b.put((byte)'n');
+		b.put((byte)0);
+		b.putInt(payloadSize);
 		if(methodname!=null)
 		{
-			addInt(methodname.length());
-			addString(methodname);
-			addInt(args.size());
+			b.putInt(methodname.length());
+			putString(b,methodname);
+			b.putInt(args.size());
 		}
+		putList(b,args);
+	}
 
-		addList(args);
-
-		byte fullreq[]=new byte[dataoffset+8];
-		System.arraycopy(data,0,fullreq,8,dataoffset);
-		fullreq[0]='B';
-		fullreq[1]='i';
-		fullreq[2]='n';
-		//fullreq[3]=0;
-		// Original request length
-		addInt(dataoffset);
-		System.arraycopy(data,dataoffset-4,fullreq,4,4);
+	/*
+	 * Encodes the complete frame into a pooled buffer, and writes it out with a single write
+	 */
+	public void writeTo(OutputStream os) throws IOException
+	{
+		int payloadSize=payloadSize();
+		ByteBuffer b=HMXRBufferPool.acquire(payloadSize+8);
+		try
+		{
+			encode(b,payloadSize);
+			os.write(b.array(),b.arrayOffset(),b.position());
+		}
+		finally
+		{
+			HMXRBufferPool.release(b);
+		}
+	}
+
+	public byte[] prepareData()
+	{
+		int payloadSize=payloadSize();
+		byte fullreq[]=new byte[payloadSize+8];
+		encode(ByteBuffer.wrap(fullreq),payloadSize);
 		return fullreq;
 	}
 
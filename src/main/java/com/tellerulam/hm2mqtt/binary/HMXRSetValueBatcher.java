@@ -0,0 +1,192 @@
+/*
+ * Gathers outgoing setValue calls to one interface within a short window,
+ * and sends them as a single "system.multicall" request. Every sub-result
+ * (or fault) is mapped back to the future of the original call.
+ */
+
+package com.tellerulam.hm2mqtt.binary;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+final class HMXRSetValueBatcher
+{
+	private static final Logger L=Logger.getLogger(HMXRSetValueBatcher.class.getName());
+
+	private static final class PendingSet
+	{
+		final String address;
+		final String datapoint;
+		final Object value;
+		final CompletableFuture<Object> result=new CompletableFuture<Object>();
+
+		PendingSet(String address,String datapoint,Object value)
+		{
+			this.address=address;
+			this.datapoint=datapoint;
+			this.value=value;
+		}
+	}
+
+	private final HMXRConnection conn;
+	private final long window;
+	private final int maxBatchSize;
+
+	private List<PendingSet> pending=new ArrayList<PendingSet>();
+	private ScheduledFuture<?> flushTask;
+
+	HMXRSetValueBatcher(HMXRConnection conn,long window,int maxBatchSize)
+	{
+		this.conn=conn;
+		this.window=window;
+		this.maxBatchSize=maxBatchSize;
+	}
+
+	CompletableFuture<Object> submit(String address,String datapoint,Object value)
+	{
+		PendingSet p=new PendingSet(address,datapoint,value);
+		List<PendingSet> full=null;
+		synchronized(this)
+		{
+			pending.add(p);
+			if(pending.size()>=maxBatchSize)
+				full=take();
+			else if(flushTask==null)
+			{
+				flushTask=HMXRConnection.scheduler.schedule(new Runnable(){
+					@Override
+					public void run()
+					{
+						flush();
+					}
+				},window,TimeUnit.MILLISECONDS);
+			}
+		}
+		if(full!=null)
+			send(full);
+		return p.result;
+	}
+
+	void flush()
+	{
+		List<PendingSet> batch;
+		synchronized(this)
+		{
+			batch=take();
+		}
+		if(!batch.isEmpty())
+			send(batch);
+	}
+
+	private List<PendingSet> take()
+	{
+		if(flushTask!=null)
+		{
+			flushTask.cancel(false);
+			flushTask=null;
+		}
+		List<PendingSet> batch=pending;
+		pending=new ArrayList<PendingSet>();
+		return batch;
+	}
+
+	private void send(final List<PendingSet> batch)
+	{
+		if(batch.size()==1)
+		{
+			final PendingSet p=batch.get(0);
+			HMXRMsg m=new HMXRMsg("setValue");
+			m.addArg(p.address);
+			m.addArg(p.datapoint);
+			m.addUntypedArg(p.value);
+			conn.sendRequestAsync(m).whenComplete((r,t)->{
+				if(t!=null)
+					p.result.completeExceptionally(HMXRConnection.unwrap(t));
+				else if(r.isFailedRequest())
+					p.result.completeExceptionally(new HMXRFaultException(r.getFaultCode(),r.getFaultString()));
+				else
+					p.result.complete(r.getData().isEmpty()?null:r.getData().get(0));
+			});
+			return;
+		}
+
+		List<Object> calls=new ArrayList<Object>(batch.size());
+		for(PendingSet p:batch)
+		{
+			Map<String,Object> call=new HashMap<String,Object>();
+			call.put("methodName","setValue");
+			call.put("params",Arrays.asList(p.address,p.datapoint,p.value));
+			calls.add(call);
+		}
+		HMXRMsg m=new HMXRMsg("system.multicall");
+		m.addArg(calls);
+		L.fine("Sending "+batch.size()+" setValue calls to "+conn.cbid+" in one multicall");
+		conn.sendRequestAsync(m).whenComplete((r,t)->{
+			if(t!=null)
+			{
+				failAll(batch,HMXRConnection.unwrap(t));
+				return;
+			}
+			if(r.isFailedRequest())
+			{
+				failAll(batch,new HMXRFaultException(r.getFaultCode(),r.getFaultString()));
+				return;
+			}
+			try
+			{
+				completeAll(batch,r);
+			}
+			catch(IOException|RuntimeException e)
+			{
+				// Don't leave any caller waiting on a malformed reply
+				failAll(batch,e);
+			}
+		});
+	}
+
+	/*
+	 * Maps the results of a multicall reply back to the pending calls
+	 */
+	private static void completeAll(List<PendingSet> batch,HMXRResponse r) throws IOException
+	{
+		Object data=r.getData().isEmpty()?Collections.emptyList():r.getData().get(0);
+		if(!(data instanceof List))
+			throw new IOException("Unexpected multicall reply "+data);
+		List<?> results=(List<?>)data;
+		for(int ix=0;ix<batch.size();ix++)
+		{
+			PendingSet p=batch.get(ix);
+			if(ix>=results.size())
+			{
+				p.result.completeExceptionally(new IOException("No result for setValue in multicall reply"));
+				continue;
+			}
+			Object res=results.get(ix);
+			if(res instanceof Map && ((Map<?,?>)res).get("faultCode")!=null)
+			{
+				Map<?,?> fault=(Map<?,?>)res;
+				Object code=fault.get("faultCode");
+				if(code instanceof Number)
+					p.result.completeExceptionally(new HMXRFaultException(((Number)code).intValue(),String.valueOf(fault.get("faultString"))));
+				else
+					p.result.completeExceptionally(new IOException("Malformed fault in multicall reply: "+fault));
+			}
+			else if(res instanceof List)
+			{
+				// Successful calls are wrapped in a single element array
+				List<?> l=(List<?>)res;
+				p.result.complete(l.isEmpty()?null:l.get(0));
+			}
+			else
+				p.result.complete(res);
+		}
+	}
+
+	private static void failAll(List<PendingSet> batch,Throwable t)
+	{
+		for(PendingSet p:batch)
+			p.result.completeExceptionally(t);
+	}
+}
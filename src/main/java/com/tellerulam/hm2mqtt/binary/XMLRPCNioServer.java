@@ -0,0 +1,306 @@
+/*
+ * Selector based alternative to the thread-per-connection XMLRPCServer
+ *
+ * A small, fixed number of selector threads assemble frames without blocking
+ * into per-connection buffers. Complete frames are handed to a bounded worker
+ * pool which runs the usual XMLRPCServer method dispatch. As the CCU only ever
+ * has one outstanding call per connection, a connection stops reading while
+ * its frame is being processed, and resumes once the reply has been written.
+ */
+
+package com.tellerulam.hm2mqtt.binary;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+final class XMLRPCNioServer
+{
+	private static final Logger L=Logger.getLogger(XMLRPCNioServer.class.getName());
+
+	private static final int numSelectors=Integer.getInteger("hm2mqtt.hm.nio.selectors",2).intValue();
+	private static final int numWorkers=Integer.getInteger("hm2mqtt.hm.nio.workers",4).intValue();
+	private static final int workQueueSize=Integer.getInteger("hm2mqtt.hm.nio.queueSize",64).intValue();
+
+	private static SelectorLoop selectors[];
+	private static ExecutorService workers;
+
+	private XMLRPCNioServer()
+	{
+		/* Static only */
+	}
+
+	static void start(ServerSocketChannel ssc) throws IOException
+	{
+		// When the queue is full, the selector thread runs the frame itself, which
+		// throttles reading on its connections
+		workers=new ThreadPoolExecutor(
+			numWorkers,numWorkers,
+			60,TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(workQueueSize),
+			new ThreadPoolExecutor.CallerRunsPolicy()
+		);
+		selectors=new SelectorLoop[numSelectors];
+		for(int ix=0;ix<numSelectors;ix++)
+		{
+			selectors[ix]=new SelectorLoop(ix);
+			selectors[ix].start();
+		}
+		new Acceptor(ssc).start();
+		L.info("Using NIO XML-RPC server with "+numSelectors+" selector threads and "+numWorkers+" workers");
+	}
+
+	static final class Acceptor extends Thread
+	{
+		private final ServerSocketChannel ssc;
+
+		Acceptor(ServerSocketChannel ssc)
+		{
+			super("XML-RPC NIO Acceptor");
+			setDaemon(true);
+			this.ssc=ssc;
+		}
+
+		@Override
+		public void run()
+		{
+			int next=0;
+			try
+			{
+				for(;;)
+				{
+					SocketChannel ch=ssc.accept();
+					ch.socket().setKeepAlive(true);
+					ch.configureBlocking(false);
+					selectors[next].register(ch);
+					next=(next+1)%selectors.length;
+				}
+			}
+			catch(Exception e)
+			{
+				/* Ignore */
+			}
+		}
+	}
+
+	static final class SelectorLoop extends Thread
+	{
+		private final Selector selector;
+		private final Queue<Runnable> pending=new ConcurrentLinkedQueue<Runnable>();
+
+		SelectorLoop(int ix) throws IOException
+		{
+			super("XML-RPC NIO Selector "+ix);
+			setDaemon(true);
+			selector=Selector.open();
+		}
+
+		void register(final SocketChannel ch)
+		{
+			post(new Runnable(){
+				@Override
+				public void run()
+				{
+					try
+					{
+						SelectionKey key=ch.register(selector,SelectionKey.OP_READ);
+						key.attach(new Connection(SelectorLoop.this,ch,key));
+						L.fine("Accepted XMLRPC-BIN connection from "+ch.socket().getRemoteSocketAddress());
+					}
+					catch(IOException e)
+					{
+						L.log(Level.INFO,"Unable to register connection",e);
+						closeQuietly(ch);
+					}
+				}
+			});
+		}
+
+		void post(Runnable r)
+		{
+			pending.add(r);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run()
+		{
+			for(;;)
+			{
+				try
+				{
+					selector.select();
+					Runnable r;
+					while((r=pending.poll())!=null)
+						r.run();
+					Iterator<SelectionKey> it=selector.selectedKeys().iterator();
+					while(it.hasNext())
+					{
+						SelectionKey key=it.next();
+						it.remove();
+						Connection c=(Connection)key.attachment();
+						if(c!=null)
+							c.handleReady();
+					}
+				}
+				catch(Exception e)
+				{
+					L.log(Level.WARNING,"Error in NIO selector loop",e);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Reply stream which is written to by the XMLRPCServer dispatch and then
+	 * drained by the selector without another copy
+	 */
+	static final class ReplyStream extends ByteArrayOutputStream
+	{
+		ByteBuffer toByteBuffer()
+		{
+			return ByteBuffer.wrap(buf,0,count);
+		}
+	}
+
+	static final class Connection implements Runnable
+	{
+		private final SelectorLoop loop;
+		private final SocketChannel ch;
+		private final SelectionKey key;
+		private final ByteBuffer header=ByteBuffer.allocate(8);
+		private final ReplyStream reply=new ReplyStream();
+		private final XMLRPCServer dispatcher=new XMLRPCServer(reply);
+		private ByteBuffer frame;
+		private boolean readingFrame;
+		private ByteBuffer pendingReply;
+
+		Connection(SelectorLoop loop,SocketChannel ch,SelectionKey key)
+		{
+			this.loop=loop;
+			this.ch=ch;
+			this.key=key;
+		}
+
+		void handleReady()
+		{
+			try
+			{
+				if(key.isValid()&&key.isReadable())
+					read();
+				if(key.isValid()&&key.isWritable())
+					write();
+			}
+			catch(EOFException eof)
+			{
+				/* Client closed, ignore */
+				close();
+			}
+			catch(Exception e)
+			{
+				L.log(Level.INFO,"Closing connection",e);
+				close();
+			}
+		}
+
+		private void read() throws IOException
+		{
+			if(!readingFrame)
+			{
+				if(ch.read(header)<0)
+					throw new EOFException();
+				if(header.hasRemaining())
+					return;
+				if(header.get(0)!='B'||header.get(1)!='i'||header.get(2)!='n')
+					throw new UnsupportedEncodingException("No BinX signature");
+				int datasize=header.getInt(4);
+				if(datasize<0)
+					throw new UnsupportedEncodingException("Invalid frame length "+datasize);
+				frame=HMXRDecoder.ensureCapacity(frame,datasize,HMXRDecoder.useDirectBuffers());
+				frame.clear();
+				frame.limit(datasize);
+				readingFrame=true;
+			}
+			if(frame.hasRemaining()&&ch.read(frame)<0)
+				throw new EOFException();
+			if(frame.hasRemaining())
+				return;
+
+			frame.flip();
+			readingFrame=false;
+			header.clear();
+			key.interestOps(0);
+			workers.execute(this);
+		}
+
+		/*
+		 * Runs on a worker thread with reading suspended
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				reply.reset();
+				dispatcher.handleFrame(frame);
+			}
+			catch(Exception e)
+			{
+				L.log(Level.INFO,"Closing connection",e);
+				loop.post(new Runnable(){
+					@Override
+					public void run()
+					{
+						close();
+					}
+				});
+				return;
+			}
+			loop.post(new Runnable(){
+				@Override
+				public void run()
+				{
+					if(!key.isValid())
+						return;
+					if(reply.size()>0)
+					{
+						pendingReply=reply.toByteBuffer();
+						key.interestOps(SelectionKey.OP_WRITE);
+					}
+					else
+						key.interestOps(SelectionKey.OP_READ);
+				}
+			});
+		}
+
+		private void write() throws IOException
+		{
+			ch.write(pendingReply);
+			if(pendingReply.hasRemaining())
+				return;
+			pendingReply=null;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		void close()
+		{
+			key.cancel();
+			closeQuietly(ch);
+		}
+	}
+
+	static void closeQuietly(Channel ch)
+	{
+		try
+		{
+			ch.close();
+		}
+		catch(IOException e)
+		{
+			// We don't care here
+		}
+	}
+}
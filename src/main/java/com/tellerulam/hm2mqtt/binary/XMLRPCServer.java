@@ -1,9 +1,13 @@
 package com.tellerulam.hm2mqtt.binary;
 
 import com.tellerulam.hm2mqtt.HM;
+import com.tellerulam.hm2mqtt.HMEvent;
+import com.tellerulam.hm2mqtt.HMEventSink;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.text.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -16,7 +20,14 @@ public class XMLRPCServer implements Runnable
 	private static ServerSocket ss;
 	public static String init() throws IOException
 	{
-		ss=new ServerSocket();
+		ServerSocketChannel ssc=null;
+		if(Boolean.getBoolean("hm2mqtt.hm.nio"))
+		{
+			ssc=ServerSocketChannel.open();
+			ss=ssc.socket();
+		}
+		else
+			ss=new ServerSocket();
 		ss.setReuseAddress(true);
 		String bindaddress=System.getProperty("hm2mqtt.hm.bindaddress");
 		if(bindaddress==null)
@@ -26,14 +37,17 @@ public class XMLRPCServer implements Runnable
 			String[] parts = bindaddress.split(":");
 			ss.bind(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])));
 		}
-		new XMLRPCAcceptor().start();
+		if(ssc!=null)
+			XMLRPCNioServer.start(ssc);
+		else
+			new XMLRPCAcceptor().start();
         String localhost=System.getProperty("hm2mqtt.hm.localhost");
         if(localhost==null)
         	localhost=InetAddress.getLocalHost().getHostAddress();
         return "binary://"+localhost+":"+ss.getLocalPort();
 	}
 
-	static private long lastRequest;
+	static private volatile long lastRequest;
 
 	static final ExecutorService xmlExecutor=Executors.newCachedThreadPool();
 
@@ -65,24 +79,32 @@ public class XMLRPCServer implements Runnable
 
 	final Socket s;
 	OutputStream os;
+	private final HMXRDecoder decoder=new HMXRDecoder();
+	private final HMEvent event=new HMEvent();
+	private static final HMEventSink eventSink=HM::dispatchEvent;
 	XMLRPCServer(Socket s)
 	{
 		this.s=s;
 	}
 
+	/*
+	 * Used by the NIO server, which does the I/O itself and only wants the
+	 * replies written to the given stream
+	 */
+	XMLRPCServer(OutputStream os)
+	{
+		this.s=null;
+		this.os=os;
+	}
+
 	private void handleMethodCall(HMXRResponse r) throws IOException, ParseException
 	{
 		lastRequest=System.currentTimeMillis();
-		if("event".equals(r.methodName))
-		{
-			HM.dispatchEvent(r.getData());
-			os.write(bEmptyString);
-		}
-		else if("listDevices".equals(r.methodName))
+		if("listDevices".equals(r.methodName))
 		{
 			HMXRMsg knownDevices=HM.dispatchListDevices(r.getData());
 			if(knownDevices!=null)
-				os.write(knownDevices.prepareData());
+				knownDevices.writeTo(os);
 			else
 				os.write(bEmptyArray);
 		}
@@ -107,34 +129,42 @@ public class XMLRPCServer implements Runnable
 			result.add("system.multicall");
 			result.add("system.listMethods");
 			m.addArg(result);
-			os.write(m.prepareData());
+			m.writeTo(os);
 		}
-		else if("system.multicall".equals(r.methodName))
+		else
 		{
-			HMXRMsg m=new HMXRMsg(null);
-
-			List<Object> result=new ArrayList<Object>();
-
-			for(Object o:(List<?>)r.getData().get(0))
-			{
-				Map<?,?> call=(Map<?,?>)o;
-				String method=call.get("methodName").toString();
-				if("event".equals(method))
-				{
-					HM.dispatchEvent((List<?>)call.get("params"));
-				}
-				else
-					L.warning("Unknown method in multicall called by XML-RPC service: "+method);
-
-				result.add(Collections.singletonList(""));
-			}
+			L.warning("Unknown method called by XML-RPC service: "+r.methodName);
+		}
+	}
 
-			m.addArg(result);
-			os.write(m.prepareData());
+	/*
+	 * Almost all inbound traffic are "event" calls, either alone or wrapped
+	 * in a "system.multicall". Those are decoded straight into the reusable
+	 * event record, everything else takes the generic decoding path.
+	 */
+	void handleFrame(ByteBuffer frame) throws IOException, ParseException
+	{
+		frame.mark();
+		String methodName=decoder.decodeMethodName(frame);
+		if("event".equals(methodName))
+		{
+			lastRequest=System.currentTimeMillis();
+			decoder.decodeEvent(frame,event);
+			HM.dispatchEvent(event);
+			os.write(bEmptyString);
+		}
+		else if("system.multicall".equals(methodName))
+		{
+			lastRequest=System.currentTimeMillis();
+			int numCalls=decoder.decodeMulticallEvents(frame,event,eventSink);
+			HMXRMsg m=new HMXRMsg(null);
+			m.addUntypedArg(Collections.nCopies(numCalls,Collections.singletonList("")));
+			m.writeTo(os);
 		}
 		else
 		{
-			L.warning("Unknown method called by XML-RPC service: "+r.methodName);
+			frame.reset();
+			handleMethodCall(decoder.decode(frame,true));
 		}
 	}
 
@@ -151,10 +181,10 @@ public class XMLRPCServer implements Runnable
 		try
 		{
 			os=s.getOutputStream();
+			InputStream is=s.getInputStream();
 			for(;;)
 			{
-				HMXRResponse r=HMXRResponse.readMsg(s,true);
-				handleMethodCall(r);
+				handleFrame(decoder.readFrame(is));
 			}
 		}
 		catch(EOFException eof)
@@ -3,6 +3,7 @@ package com.tellerulam.hm2mqtt.xml;
 import com.tellerulam.hm2mqtt.DatapointInfo;
 import com.tellerulam.hm2mqtt.DeviceInfo;
 import com.tellerulam.hm2mqtt.HMConnection;
+import com.tellerulam.hm2mqtt.HMEvent;
 import com.tellerulam.hm2mqtt.binary.HMXRMsg;
 import org.apache.xmlrpc.client.XmlRpcClient;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
@@ -20,17 +21,37 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class HMXmlConnection implements HMConnection {
 
+    private static final int poolSize = Math.max(Integer.getInteger("hm2mqtt.hm.poolSize", 2).intValue(), 1);
+    private static final long requestTimeout = Long.getLong("hm2mqtt.hm.requestTimeout", 30).longValue() * 1000;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "XML-RPC (xml) scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
     private final Logger L = Logger.getLogger(getClass().getName());
     private final String cbid;
     private WebServer webserver;
     private InetAddress localHost;
     private XmlRpcClient client;
     private HMServerAPI hmApi;
+    private final ExecutorService requestExecutor;
 
     public HMXmlConnection(String host, int port, String cbid) {
         this.cbid = cbid;
@@ -43,6 +64,9 @@ public class HMXmlConnection implements HMConnection {
         }
         config.setContentLengthOptional(true);
         config.setEnabledForExceptions(true);
+        // Also frees the request thread of a call which has hit its deadline
+        config.setConnectionTimeout((int) requestTimeout);
+        config.setReplyTimeout((int) requestTimeout);
         callbackURL();
         config.setXmlRpcServer(webserver.getXmlRpcServer());
         client.setConfig(config);
@@ -50,6 +74,39 @@ public class HMXmlConnection implements HMConnection {
                 Thread.currentThread().getContextClassLoader(),
                 HMServerAPI.class,
                 null);
+        requestExecutor = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "XML-RPC (xml) request " + cbid);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /*
+     * Runs a request on the request executor. The future fails with a
+     * TimeoutException once hm.requestTimeout has passed.
+     */
+    private <T> CompletableFuture<T> request(String method, Supplier<T> call) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        Future<?> running;
+        try {
+            running = requestExecutor.submit(() -> {
+                try {
+                    f.complete(call.get());
+                } catch (Throwable t) {
+                    f.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            f.completeExceptionally(e);
+            return f;
+        }
+        ScheduledFuture<?> deadline = scheduler.schedule(() -> {
+            if (f.completeExceptionally(new TimeoutException(method + " to " + cbid + " timed out"))) {
+                running.cancel(true);
+            }
+        }, requestTimeout, TimeUnit.MILLISECONDS);
+        f.whenComplete((r, t) -> deadline.cancel(false));
+        return f;
     }
 
     private String callbackURL() {
@@ -105,26 +162,29 @@ public class HMXmlConnection implements HMConnection {
     }
 
     @Override
-    public void getValue(DeviceInfo di, String topic, String datapoint, String value) {
-        Object responseValue = hmApi.getValue(di.address, datapoint);
-        // We don't want to retain ACTION one-shot keypress notifications
-        DatapointInfo dpi = di.getValueDatapointInfo(datapoint);
-        dpi.publish(topic, responseValue, di.address, value);
+    public CompletableFuture<Object> getValue(DeviceInfo di, String datapoint) {
+        return request("getValue", () -> hmApi.getValue(di.address, datapoint));
     }
 
     @Override
-    public void setValue(DeviceInfo di, String datapoint, String value) {
+    public CompletableFuture<Void> setValue(DeviceInfo di, String datapoint, String value) {
         DatapointInfo dpi = di.getValueDatapointInfo(datapoint);
         if (dpi == null) {
             L.info("Unknown datapoint " + di.address + "." + datapoint + ", ignoring set");
-            return;
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            f.completeExceptionally(new IllegalArgumentException("Unknown datapoint " + datapoint));
+            return f;
         }
-        Object response = hmApi.setValue(di.address, datapoint, dpi.convertedValue(value));
-        L.log(Level.INFO, "setValue returned " + response);
+        Object convertedValue = dpi.convertedValue(value);
+        return request("setValue", () -> {
+            Object response = hmApi.setValue(di.address, datapoint, convertedValue);
+            L.log(Level.INFO, "setValue returned " + response);
+            return null;
+        });
     }
 
     @Override
-    public void handleEvent(List<?> parms) {
+    public void handleEvent(HMEvent event) {
     }
 
     @Override
@@ -148,8 +208,8 @@ public class HMXmlConnection implements HMConnection {
     }
 
     @Override
-    public void reportValueUsage(DeviceInfo di, String datapoint, boolean use) {
-
+    public CompletableFuture<Void> reportValueUsage(DeviceInfo di, String datapoint, boolean use) {
+        return CompletableFuture.completedFuture(null);
     }
 
     @Override